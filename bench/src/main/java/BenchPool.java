@@ -0,0 +1,27 @@
+import bench.PoolDriver;
+
+/**
+ * Drives a ResourcePool of plain objects for the benchmarks
+ */
+public class BenchPool implements PoolDriver {
+  private ResourcePool pool;
+
+  public void create(int size) {
+    pool = new ResourcePool(size,new ResourceCreator() {
+      public Object createResource() {
+        return new Object();
+      }
+
+      public void destroyResource(Object resource) {
+      }
+    });
+  }
+
+  public Object acquire() throws InterruptedException {
+    return pool.getResource();
+  }
+
+  public void release(Object handle) {
+    pool.freeResource((ResourcePool.Handle) handle);
+  }
+}
@@ -0,0 +1,12 @@
+import java.io.File;
+
+import bench.RepositoryDriver;
+
+/**
+ * Loads init files for the benchmarks, as readInitFile does at startup
+ */
+public class BenchRepository implements RepositoryDriver {
+  public int load(File config) throws Exception {
+    return new ZipRepository(config.getPath(),null).getZips().length;
+  }
+}
@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import bench.Mocks;
+import bench.ServletDriver;
+
+/**
+ * Drives ZipViewServlet for the benchmarks.
+ * The servlet isn't initialized: it runs with its default pools, and
+ * the zip is served from a record of its own rather than from an init
+ * file.
+ */
+public class BenchServlet implements ServletDriver {
+  private final ZipViewServlet      servlet = new ZipViewServlet();
+  private final Mocks.Output        out     = new Mocks.Output();
+  private final HttpServletRequest  req     = Mocks.request("/bench/");
+  private final HttpServletResponse res     = Mocks.response(out);
+
+  private ZipRecord      record;
+  private ZipArchive     archive;
+  private ArchiveEntry[] files;
+
+  public void open(File zip) throws IOException {
+    record = new ZipRecord();
+    record.virtualDir = "bench";
+    record.file       = zip.getPath();
+
+    archive = record.getArchive();
+    if(archive == null)
+      throw new IOException("Can't open " + zip);
+
+    List<ArchiveEntry> l = new ArrayList<ArchiveEntry>();
+    for(Enumeration<ArchiveEntry> e=archive.entries();e.hasMoreElements();) {
+      ArchiveEntry entry = e.nextElement();
+      if(!entry.isDirectory())
+        l.add(entry);
+    }
+    files = l.toArray(new ArchiveEntry[l.size()]);
+  }
+
+  public int files() {
+    return files.length;
+  }
+
+  public long sendFile(int i) throws Exception {
+    InputStream in = archive.getInputStream(files[i]);
+    try {
+      servlet.sendFile(files[i],in,out);
+    } finally {
+      in.close();
+    }
+    return out.take();
+  }
+
+  public long sendHexFile(int i) throws Exception {
+    InputStream in = archive.getInputStream(files[i]);
+    try {
+      servlet.sendHexFile(files[i],in,out,req,"hex",null,0);
+    } finally {
+      in.close();
+    }
+    return out.take();
+  }
+
+  public long showDir(String path) throws Exception {
+    servlet.showDir(archive.getDirectory(path),req,res);
+    return out.take();
+  }
+
+  public long showEntireZip() throws Exception {
+    // The page is cached after the first call: measure building it
+    servlet.pages.clear();
+    servlet.showEntireZip(archive,record,req,res);
+    return out.take();
+  }
+
+  public String getRequestedAlias(String pathInfo) {
+    return servlet.getRequestedAlias(pathInfo);
+  }
+
+  public String getRequestedFile(String pathInfo) {
+    return servlet.getRequestedFile(pathInfo);
+  }
+
+  public String guessContentType(String filename) {
+    out.contentType = null;
+    servlet.guessContentType(filename,res);
+    return out.contentType;
+  }
+
+  public void close() {
+    if(archive != null)
+      archive.release();
+    if(record != null)
+      record.remove();
+  }
+}
@@ -0,0 +1,137 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic zip files and init files for the benchmarks.
+ * Files are made once in the zipview-bench directory under
+ * java.io.tmpdir, or the bench.dir property, and reused by later
+ * runs with the same parameters.
+ */
+public final class Archives {
+  /**
+   * Subdirectories the entries are spread over
+   */
+  public static final int DIRECTORIES = 16;
+
+  private Archives() {
+  }
+
+  static File directory() throws IOException {
+    File dir = new File(System.getProperty("bench.dir",
+                                           System.getProperty("java.io.tmpdir") +
+                                           File.separator + "zipview-bench"));
+
+    if(!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create " + dir);
+    return dir;
+  }
+
+  /**
+   * Name of the i-th entry
+   */
+  public static String entryName(int i) {
+    return "d" + (i % DIRECTORIES) + "/file" + i + ".txt";
+  }
+
+  /**
+   * A zip of entries files of size bytes each, "stored" or "deflated".
+   * The content is text of a few letters, which deflates about 3:1.
+   */
+  public static File zip(int entries,int size,String method)
+    throws IOException {
+
+    boolean stored;
+    if("stored".equals(method))
+      stored = true;
+    else if("deflated".equals(method))
+      stored = false;
+    else
+      throw new IllegalArgumentException("Unknown method " + method);
+
+    File f = new File(directory(),entries + "-" + size + "-" + method + ".zip");
+    if(f.exists())
+      return f;
+
+    File tmp = new File(f.getPath() + ".tmp");
+    Random random = new Random(entries * 31L + size);
+    byte[] data = new byte[size];
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+
+    try {
+      for(int i=0;i<entries;i++) {
+        for(int j=0;j<size;j++)
+          data[j] = (byte) ('a' + random.nextInt(8));
+
+        ZipEntry e = new ZipEntry(entryName(i));
+        if(stored) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          e.setMethod(ZipEntry.STORED);
+          e.setSize(size);
+          e.setCompressedSize(size);
+          e.setCrc(crc.getValue());
+        } else {
+          e.setMethod(ZipEntry.DEFLATED);
+        }
+        out.putNextEntry(e);
+        out.write(data);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+
+    if(!tmp.renameTo(f))
+      throw new IOException("Can't rename " + tmp);
+    return f;
+  }
+
+  /**
+   * An init file listing zips entries, all pointing to zip, each with
+   * a description and two entry points
+   */
+  public static File config(int zips,File zip) throws IOException {
+    File f = new File(directory(),"config-" + zips + ".xml");
+    if(f.exists())
+      return f;
+
+    File tmp = new File(f.getPath() + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(tmp),"UTF-8");
+
+    try {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<ZipViewList>\n");
+      out.write("<ResourceZip><File>" + zip.getPath() + "</File></ResourceZip>\n");
+      out.write("<ZipList>\n");
+      for(int i=0;i<zips;i++) {
+        out.write("<ZipFile>\n");
+        out.write("  <VDir>zip" + i + "</VDir>\n");
+        out.write("  <File>" + zip.getPath() + "</File>\n");
+        out.write("  <Description>Zip number " + i + "</Description>\n");
+        out.write("  <DefEntryPoint><RelURL>index.html</RelURL></DefEntryPoint>\n");
+        out.write("  <EntryPoint><RelURL>" + entryName(1) + "</RelURL>" +
+                  "<Description>First</Description></EntryPoint>\n");
+        out.write("  <EntryPoint><RelURL>" + entryName(2) + "</RelURL>" +
+                  "<Description>Second</Description></EntryPoint>\n");
+        out.write("</ZipFile>\n");
+      }
+      out.write("</ZipList>\n");
+      out.write("</ZipViewList>\n");
+    } finally {
+      out.close();
+    }
+
+    if(!tmp.renameTo(f))
+      throw new IOException("Can't rename " + tmp);
+    return f;
+  }
+}
@@ -0,0 +1,23 @@
+package bench;
+
+/**
+ * Loads the drivers of the benchmarks.
+ * JMH only takes benchmarks in a named package, and code in a named
+ * package can't refer to the servlet classes, which are in the unnamed
+ * one. So each benchmark calls the servlet through an interface of this
+ * package, implemented by a driver in the unnamed package and loaded
+ * by name. The calls are monomorphic and get inlined like direct ones.
+ */
+final class Drivers {
+  private Drivers() {
+  }
+
+  static <T> T load(Class<T> type,String name) {
+    try {
+      return type.cast(Class.forName(name).getDeclaredConstructor().
+                       newInstance());
+    } catch(ReflectiveOperationException e) {
+      throw new IllegalStateException("Can't load driver " + name,e);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Archives and init file for the load test.
+ * Archives a0, a1... hold many small entries spread over a directory
+ * tree up to depth levels deep; the archive "huge" holds one STORED
+ * and one DEFLATED entry of hugeSize bytes. The init file is written
+ * as .zipviewservlet.conf in the directory, which the servlet reads
+ * when the directory is user.home. Archives already made with the same
+ * parameters are reused.
+ */
+public class LoadData {
+  /**
+   * Virtual directory of the archive with the huge entries
+   */
+  public static final String HUGE = "huge";
+
+  public static final String HUGE_STORED   = "stored.txt";
+  public static final String HUGE_DEFLATED = "deflated.txt";
+
+  final File dir;
+  final int  archives;
+  final int  entries;
+  final int  entrySize;
+  final int  depth;
+  final long hugeSize;
+
+  public LoadData(File dir,int archives,int entries,int entrySize,int depth,
+                  long hugeSize) {
+    this.dir       = dir;
+    this.archives  = archives;
+    this.entries   = entries;
+    this.entrySize = entrySize;
+    this.depth     = depth;
+    this.hugeSize  = hugeSize;
+  }
+
+  /**
+   * Virtual directory of the i-th small archive
+   */
+  public String archive(int i) {
+    return "a" + i;
+  }
+
+  /**
+   * Directory of the k-th entry: k % (depth + 1) levels of a tree
+   * branching four ways, "" for the root
+   */
+  public String entryDir(int k) {
+    StringBuilder sb = new StringBuilder();
+    int levels = k % (depth + 1);
+
+    for(int j=0;j<levels;j++)
+      sb.append('n').append((k >> (2 * (j % 15))) & 3).append('/');
+    return sb.toString();
+  }
+
+  /**
+   * Name of the k-th entry; half are HTML, half text
+   */
+  public String entryName(int k) {
+    return entryDir(k) + "file" + k + ((k & 1) == 0 ? ".html" : ".txt");
+  }
+
+  /**
+   * Make the files that are missing
+   */
+  public void generate() throws IOException {
+    if(!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create " + dir);
+
+    for(int i=0;i<archives;i++)
+      smallArchive(file(archive(i)),i);
+    hugeArchive(file(HUGE));
+    resourceArchive(new File(dir,"res.zip"));
+    config(new File(dir,".zipviewservlet.conf"));
+  }
+
+  File file(String vdir) {
+    String name = HUGE.equals(vdir) ?
+      "huge-" + hugeSize : vdir + "-" + entries + "-" + entrySize + "-" + depth;
+    return new File(dir,name + ".zip");
+  }
+
+  private void smallArchive(File f,int seed) throws IOException {
+    if(f.exists())
+      return;
+
+    Random random = new Random(seed);
+    byte[] data = new byte[entrySize];
+    File tmp = new File(f.getPath() + ".tmp");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+
+    try {
+      for(int k=0;k<entries;k++) {
+        text(random,data,data.length);
+        out.putNextEntry(new ZipEntry(entryName(k)));
+        out.write(data);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    rename(tmp,f);
+  }
+
+  private void hugeArchive(File f) throws IOException {
+    if(f.exists())
+      return;
+
+    File tmp = new File(f.getPath() + ".tmp");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+
+    try {
+      // STORED entries need their size and CRC up front
+      ZipEntry e = new ZipEntry(HUGE_STORED);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(hugeSize);
+      e.setCompressedSize(hugeSize);
+      e.setCrc(crc(new Random(1)));
+      out.putNextEntry(e);
+      write(new Random(1),out);
+      out.closeEntry();
+
+      e = new ZipEntry(HUGE_DEFLATED);
+      e.setMethod(ZipEntry.DEFLATED);
+      out.putNextEntry(e);
+      write(new Random(2),out);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    rename(tmp,f);
+  }
+
+  /**
+   * The style sheet the generated pages link to
+   */
+  private void resourceArchive(File f) throws IOException {
+    if(f.exists())
+      return;
+
+    File tmp = new File(f.getPath() + ".tmp");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+
+    try {
+      out.putNextEntry(new ZipEntry("styles/style.css"));
+      out.write("body { font-family: sans-serif; }\n".getBytes("UTF-8"));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    rename(tmp,f);
+  }
+
+  /**
+   * Rewritten each time: it names the archives of these parameters
+   */
+  private void config(File f) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(tmp),"UTF-8");
+
+    try {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<ZipViewList>\n");
+      out.write("<ResourceZip><File>" + new File(dir,"res.zip").getPath() +
+                "</File></ResourceZip>\n");
+      out.write("<ZipList>\n");
+      for(int i=0;i<=archives;i++) {
+        String vdir = i < archives ? archive(i) : HUGE;
+
+        out.write("<ZipFile>\n");
+        out.write("  <VDir>" + vdir + "</VDir>\n");
+        out.write("  <File>" + file(vdir).getPath() + "</File>\n");
+        out.write("  <Description>Load test " + vdir + "</Description>\n");
+        out.write("  <DefEntryPoint><RelURL>" +
+                  (i < archives ? entryName(0) : HUGE_STORED) +
+                  "</RelURL></DefEntryPoint>\n");
+        out.write("</ZipFile>\n");
+      }
+      out.write("</ZipList>\n");
+      out.write("</ZipViewList>\n");
+    } finally {
+      out.close();
+    }
+    rename(tmp,f);
+  }
+
+  /**
+   * Lines of a few letters, which deflate about 3:1
+   */
+  private static void text(Random random,byte[] b,int n) {
+    for(int j=0;j<n;j++)
+      b[j] = (byte) ((j & 63) == 63 ? '\n' : 'a' + random.nextInt(8));
+  }
+
+  /**
+   * hugeSize bytes of text to out
+   */
+  private void write(Random random,OutputStream out) throws IOException {
+    byte[] b = new byte[64 * 1024];
+
+    for(long left=hugeSize;left>0;) {
+      int n = (int) Math.min(b.length,left);
+      text(random,b,n);
+      out.write(b,0,n);
+      left -= n;
+    }
+  }
+
+  /**
+   * The CRC of what write(random,out) writes
+   */
+  private long crc(Random random) throws IOException {
+    final CRC32 crc = new CRC32();
+
+    write(random,new OutputStream() {
+      public void write(int b) {
+        crc.update(b);
+      }
+
+      public void write(byte[] b,int off,int len) {
+        crc.update(b,off,len);
+      }
+    });
+    return crc.getValue();
+  }
+
+  private static void rename(File from,File to) throws IOException {
+    if(!from.renameTo(to))
+      throw new IOException("Can't rename " + from + " to " + to);
+  }
+}
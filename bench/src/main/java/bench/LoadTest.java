@@ -0,0 +1,620 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * End-to-end load test.
+ * Generates the archives of LoadData, starts ZipViewServlet on them in
+ * an embedded Jetty on localhost, and drives it over HTTP. Each phase
+ * sends one URL class, so that the GC and allocation figures of the
+ * phase are those of the class, or with -mix a weighted mix of them.
+ *
+ * URL classes: entry (small entries), hex (?hex of small entries),
+ * browseall, dir (listings of the directory tree), huge (the large
+ * STORED and DEFLATED entries) and reload (?reload).
+ *
+ * The client is closed-loop, -clients threads each sending a request
+ * when the previous one ends, or with -rate, open-loop: requests
+ * start at a fixed rate whatever the response times, and latency is
+ * counted from the time a request was due, so a stalled server shows
+ * in the figures instead of slowing the client down.
+ *
+ * Reported for each class: requests, throughput, error rate (failed
+ * requests and statuses of 400 and over), p50/p99/p999/max latency,
+ * and for each phase the collections and GC time of the JVM and the
+ * bytes allocated by the server threads. Client and server share the
+ * JVM: the GC figures include the client, the allocation doesn't.
+ *
+ * Usage: java bench.LoadTest [-option value]...; see OPTIONS.
+ */
+public class LoadTest {
+  static final String[] CLASSES = {
+    "entry", "hex", "browseall", "dir", "huge", "reload"
+  };
+
+  /**
+   * Options and their defaults
+   */
+  static final String[][] OPTIONS = {
+    { "dir",       System.getProperty("java.io.tmpdir") + File.separator +
+                   "zipview-load", "Where the archives are made" },
+    { "archives",  "20",     "Archives of small entries" },
+    { "entries",   "2000",   "Entries of each archive" },
+    { "entrySize", "4096",   "Bytes of each small entry" },
+    { "depth",     "12",     "Levels of the directory tree" },
+    { "hugeSize",  "67108864", "Bytes of each huge entry" },
+    { "classes",   "entry,hex,browseall,dir,huge,reload",
+                   "URL classes, one phase each" },
+    { "mix",       "",       "One phase of weighted classes instead, e.g. entry=80,dir=15,huge=5" },
+    { "clients",   "16",     "Closed loop: concurrent clients" },
+    { "rate",      "0",      "Open loop: requests per second, 0 for closed loop" },
+    { "warmup",    "10",     "Seconds of each phase not measured" },
+    { "duration",  "30",     "Seconds measured of each phase" },
+    { "threads",   "200",    "Server threads" },
+    { "port",      "0",      "Server port, 0 for any" },
+    { "init",      "",       "Servlet init parameters, e.g. maxOpenArchives=8,entryCacheSize=0" },
+    { "json",      "",       "Also write the results to this file" }
+  };
+
+  /**
+   * Prefix of the server thread names, whose allocation is counted
+   */
+  static final String SERVER_THREADS = "server-";
+
+  final Map<String,String> options;
+  final LoadData           data;
+  final HttpClient         client;
+  String                   base;
+
+  LoadTest(Map<String,String> options) {
+    this.options = options;
+    this.data = new LoadData(new File(options.get("dir")),
+                             integer("archives"),integer("entries"),
+                             integer("entrySize"),integer("depth"),
+                             Long.parseLong(options.get("hugeSize")));
+    // One session for all: the servlet opens one per client otherwise
+    this.client = HttpClient.newBuilder().
+      version(HttpClient.Version.HTTP_1_1).
+      followRedirects(HttpClient.Redirect.NEVER).
+      cookieHandler(new CookieManager()).
+      connectTimeout(Duration.ofSeconds(10)).
+      build();
+  }
+
+  int integer(String name) {
+    return Integer.parseInt(options.get(name));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> options = new HashMap<String,String>();
+    for(String[] o : OPTIONS)
+      options.put(o[0],o[1]);
+
+    for(int i=0;i<args.length;i++) {
+      String name = args[i].startsWith("-") ? args[i].substring(1) : null;
+
+      if(name == null || !options.containsKey(name) || i + 1 == args.length) {
+        usage();
+        return;
+      }
+      options.put(name,args[++i]);
+    }
+
+    new LoadTest(options).run();
+  }
+
+  static void usage() {
+    System.err.println("Usage: java bench.LoadTest [-option value]...");
+    for(String[] o : OPTIONS)
+      System.err.println(String.format("  -%-10s %s (%s)",o[0],o[2],o[1]));
+  }
+
+  void run() throws Exception {
+    long start = System.nanoTime();
+    data.generate();
+    System.out.println("Archives ready in " + data.dir + " in " +
+                       (System.nanoTime() - start) / 1000000 + "ms");
+
+    // The servlet reads its init file from the home directory
+    System.setProperty("user.home",data.dir.getPath());
+    Server server = startServer();
+
+    List<Map<String,Integer>> phases = new ArrayList<Map<String,Integer>>();
+    if(options.get("mix").length() > 0) {
+      phases.add(weights(options.get("mix")));
+    } else {
+      for(String c : options.get("classes").split(","))
+        phases.add(weights(c.trim() + "=1"));
+    }
+
+    List<Phase> results = new ArrayList<Phase>();
+    try {
+      for(Map<String,Integer> mix : phases) {
+        Phase warm = new Phase(mix);
+        drive(warm,integer("warmup"));
+
+        Phase p = new Phase(mix);
+        p.begin();
+        drive(p,integer("duration"));
+        p.end();
+        p.report(System.out);
+        results.add(p);
+      }
+    } finally {
+      server.stop();
+    }
+
+    if(options.get("json").length() > 0)
+      json(new File(options.get("json")),results);
+  }
+
+  /**
+   * Start Jetty with the servlet on /zipview, and wait for ?ready
+   */
+  Server startServer() throws Exception {
+    QueuedThreadPool threads = new QueuedThreadPool(integer("threads"),8);
+    threads.setName(SERVER_THREADS.substring(0,SERVER_THREADS.length() - 1));
+    // Threads live through the run, so their allocation is counted
+    threads.setIdleTimeout((int) TimeUnit.HOURS.toMillis(1));
+
+    Server server = new Server(threads);
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setPort(integer("port"));
+    server.addConnector(connector);
+
+    ServletContextHandler context =
+      new ServletContextHandler(ServletContextHandler.SESSIONS);
+    context.setContextPath("/");
+
+    ServletHolder holder = new ServletHolder();
+    holder.setName("zipview");
+    holder.setClassName("ZipViewServlet");
+    holder.setInitOrder(0);
+    holder.setAsyncSupported(true);
+    for(String p : options.get("init").split(",")) {
+      int eq = p.indexOf('=');
+      if(eq > 0)
+        holder.setInitParameter(p.substring(0,eq).trim(),
+                                p.substring(eq + 1).trim());
+    }
+    context.addServlet(holder,"/zipview/*");
+
+    server.setHandler(context);
+    server.start();
+
+    base = "http://127.0.0.1:" + connector.getLocalPort() + "/zipview";
+    System.out.println("Serving on " + base);
+
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+    while(true) {
+      HttpResponse<Void> r = client.send(request(base + "/?ready"),
+                                         HttpResponse.BodyHandlers.discarding());
+      if(r.statusCode() == 200)
+        return server;
+      if(System.nanoTime() > deadline)
+        throw new IOException("Server not ready");
+      Thread.sleep(100);
+    }
+  }
+
+  static Map<String,Integer> weights(String spec) {
+    Map<String,Integer> m = new LinkedHashMap<String,Integer>();
+
+    for(String w : spec.split(",")) {
+      int eq = w.indexOf('=');
+      String c = eq > 0 ? w.substring(0,eq).trim() : w.trim();
+      int weight = eq > 0 ? Integer.parseInt(w.substring(eq + 1).trim()) : 1;
+
+      if(!Arrays.asList(CLASSES).contains(c))
+        throw new IllegalArgumentException("Unknown URL class " + c);
+      if(weight > 0)
+        m.put(c,weight);
+    }
+    return m;
+  }
+
+  static HttpRequest request(String url) {
+    return HttpRequest.newBuilder(URI.create(url)).
+      timeout(Duration.ofSeconds(120)).GET().build();
+  }
+
+  /**
+   * A URL of a class, at random
+   */
+  String url(String c) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String archive = data.archive(random.nextInt(data.archives));
+    int k = random.nextInt(data.entries);
+
+    if(c.equals("entry"))
+      return base + "/" + archive + "/" + data.entryName(k);
+    if(c.equals("hex"))
+      return base + "/" + archive + "/" + data.entryName(k) + "?hex";
+    if(c.equals("browseall"))
+      return base + "/" + archive + "?browseall";
+    if(c.equals("dir")) {
+      // An entry below the root, for a directory implied by its path
+      if(k % (data.depth + 1) == 0)
+        k = k + 1 < data.entries ? k + 1 : 1;
+      String dir = data.entryDir(k);
+      return base + "/" + archive + "/" +
+        (dir.length() > 0 ? dir.substring(0,dir.length() - 1) : "");
+    }
+    if(c.equals("huge"))
+      return base + "/" + LoadData.HUGE + "/" +
+        (random.nextBoolean() ? LoadData.HUGE_STORED : LoadData.HUGE_DEFLATED);
+    return base + "/?reload";
+  }
+
+  /**
+   * Run the client of a phase for seconds
+   */
+  void drive(Phase p,int seconds) throws InterruptedException {
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    int rate = integer("rate");
+
+    if(rate > 0)
+      openLoop(p,rate,end);
+    else
+      closedLoop(p,integer("clients"),end);
+  }
+
+  void closedLoop(final Phase p,int clients,final long end)
+    throws InterruptedException {
+
+    Thread[] threads = new Thread[clients];
+
+    for(int i=0;i<clients;i++) {
+      threads[i] = new Thread("client-" + i) {
+        public void run() {
+          while(System.nanoTime() < end) {
+            String c = p.next();
+            long start = System.nanoTime();
+            try {
+              HttpResponse<Long> r = client.send(request(url(c)),COUNTING);
+              p.done(c,start,r.statusCode(),r.body());
+            } catch(IOException e) {
+              p.failed(c,start);
+            } catch(InterruptedException e) {
+              return;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    for(Thread t : threads)
+      t.join();
+  }
+
+  void openLoop(final Phase p,int rate,long end) throws InterruptedException {
+    final AtomicInteger outstanding = new AtomicInteger();
+    long period = TimeUnit.SECONDS.toNanos(1) / rate;
+    long due    = System.nanoTime();
+
+    for(;due < end;due += period) {
+      long wait = due - System.nanoTime();
+      if(wait > 0)
+        LockSupport.parkNanos(wait);
+
+      final String c = p.next();
+      final long   start = due;
+      outstanding.incrementAndGet();
+      client.sendAsync(request(url(c)),COUNTING).whenComplete(
+        new BiConsumer<HttpResponse<Long>,Throwable>() {
+          public void accept(HttpResponse<Long> r,Throwable t) {
+            if(t != null)
+              p.failed(c,start);
+            else
+              p.done(c,start,r.statusCode(),r.body());
+            outstanding.decrementAndGet();
+          }
+        });
+    }
+
+    // Late responses still count, up to a limit
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+    while(outstanding.get() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    if(outstanding.get() > 0)
+      System.out.println(outstanding.get() + " requests still running");
+  }
+
+  /**
+   * Reads response bodies, counting their bytes without keeping them
+   */
+  static final HttpResponse.BodyHandler<Long> COUNTING =
+    new HttpResponse.BodyHandler<Long>() {
+      public HttpResponse.BodySubscriber<Long> apply(
+        HttpResponse.ResponseInfo info) {
+
+        return HttpResponse.BodySubscribers.fromSubscriber(
+          new Counter(),new Function<Counter,Long>() {
+            public Long apply(Counter c) {
+              return c.bytes;
+            }
+          });
+      }
+    };
+
+  static class Counter implements Flow.Subscriber<List<ByteBuffer>> {
+    long bytes;
+
+    public void onSubscribe(Flow.Subscription s) {
+      s.request(Long.MAX_VALUE);
+    }
+
+    public void onNext(List<ByteBuffer> buffers) {
+      for(ByteBuffer b : buffers)
+        bytes += b.remaining();
+    }
+
+    public void onError(Throwable t) {
+    }
+
+    public void onComplete() {
+    }
+  }
+
+  /**
+   * Figures of one phase
+   */
+  static class Phase {
+    final Map<String,Integer> mix;
+    final String[] classes;
+    final int[]    cumulative;
+    final Map<String,Stats> stats = new LinkedHashMap<String,Stats>();
+
+    long startNanos, endNanos;
+    long gcCount, gcTime;
+    long allocated;
+    Map<Long,Long> allocatedAtStart;
+
+    Phase(Map<String,Integer> mix) {
+      this.mix = mix;
+      classes    = mix.keySet().toArray(new String[mix.size()]);
+      cumulative = new int[classes.length];
+      int sum = 0;
+      for(int i=0;i<classes.length;i++) {
+        cumulative[i] = sum += mix.get(classes[i]);
+        stats.put(classes[i],new Stats());
+      }
+    }
+
+    String name() {
+      return classes.length == 1 ? classes[0] : "mix " + mix;
+    }
+
+    /**
+     * A class drawn by weight
+     */
+    String next() {
+      if(classes.length == 1)
+        return classes[0];
+
+      int r = ThreadLocalRandom.current().nextInt(
+        cumulative[cumulative.length - 1]);
+      for(int i=0;;i++)
+        if(r < cumulative[i])
+          return classes[i];
+    }
+
+    void done(String c,long start,int status,long bytes) {
+      Stats s = stats.get(c);
+      s.latency.recordValue(System.nanoTime() - start);
+      s.requests.increment();
+      s.bytes.add(bytes);
+      if(status >= 400)
+        s.errors.increment();
+    }
+
+    void failed(String c,long start) {
+      Stats s = stats.get(c);
+      s.latency.recordValue(System.nanoTime() - start);
+      s.requests.increment();
+      s.errors.increment();
+    }
+
+    void begin() {
+      gcCount = -gcCount();
+      gcTime  = -gcTime();
+      allocatedAtStart = serverAllocation();
+      startNanos = System.nanoTime();
+    }
+
+    void end() {
+      endNanos = System.nanoTime();
+      gcCount += gcCount();
+      gcTime  += gcTime();
+
+      for(Map.Entry<Long,Long> e : serverAllocation().entrySet()) {
+        Long before = allocatedAtStart.get(e.getKey());
+        allocated += e.getValue() - (before != null ? before : 0);
+      }
+    }
+
+    double seconds() {
+      return (endNanos - startNanos) / 1e9;
+    }
+
+    long requests() {
+      long n = 0;
+      for(Stats s : stats.values())
+        n += s.requests.sum();
+      return n;
+    }
+
+    void report(PrintStream out) {
+      double seconds = seconds();
+
+      out.println();
+      out.println("Phase " + name() + String.format(Locale.ROOT,", %.1fs",
+                                                    seconds));
+      out.println(String.format(Locale.ROOT,
+                                "%-10s %9s %9s %7s %7s %8s %8s %8s %8s %9s",
+                                "class","requests","req/s","errors","err%",
+                                "p50 ms","p99 ms","p999 ms","max ms","MB/s"));
+      for(Map.Entry<String,Stats> e : stats.entrySet()) {
+        Stats s = e.getValue();
+        long  n = s.requests.sum();
+
+        out.println(String.format(Locale.ROOT,
+                                  "%-10s %9d %9.1f %7d %7.2f %8.3f %8.3f %8.3f %8.3f %9.1f",
+                                  e.getKey(),n,n / seconds,s.errors.sum(),
+                                  n > 0 ? 100.0 * s.errors.sum() / n : 0,
+                                  s.quantile(0.5),s.quantile(0.99),
+                                  s.quantile(0.999),
+                                  s.latency.getMaxValue() / 1e6,
+                                  s.bytes.sum() / seconds / (1 << 20)));
+      }
+      long n = requests();
+      out.println(String.format(Locale.ROOT,
+                                "GC: %d collections, %d ms; server allocation: %.1f MB, %.1f KB/request",
+                                gcCount,gcTime,allocated / (double) (1 << 20),
+                                n > 0 ? allocated / 1024.0 / n : 0));
+    }
+  }
+
+  static class Stats {
+    final Histogram latency  = new ConcurrentHistogram(3);
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors   = new LongAdder();
+    final LongAdder bytes    = new LongAdder();
+
+    /**
+     * Latency quantile in milliseconds
+     */
+    double quantile(double q) {
+      return latency.getValueAtPercentile(q * 100) / 1e6;
+    }
+  }
+
+  static long gcCount() {
+    long n = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0,gc.getCollectionCount());
+    return n;
+  }
+
+  static long gcTime() {
+    long n = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0,gc.getCollectionTime());
+    return n;
+  }
+
+  /**
+   * Bytes allocated so far by each server thread, by thread id
+   */
+  static Map<Long,Long> serverAllocation() {
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Map<Long,Long> m = new HashMap<Long,Long>();
+
+    for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+      if(info == null || !info.getThreadName().startsWith(SERVER_THREADS))
+        continue;
+
+      long bytes = threads.getThreadAllocatedBytes(info.getThreadId());
+      if(bytes >= 0)
+        m.put(info.getThreadId(),bytes);
+    }
+    return m;
+  }
+
+  /**
+   * Results as JSON, to compare runs
+   */
+  void json(File f,List<Phase> phases) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(f),"UTF-8");
+
+    try {
+      out.write("{\n  \"options\": {");
+      String sep = "";
+      for(String[] o : OPTIONS) {
+        out.write(sep + "\"" + o[0] + "\": \"" +
+                  options.get(o[0]).replace("\\","\\\\").replace("\"","\\\"") +
+                  "\"");
+        sep = ", ";
+      }
+      out.write("},\n  \"phases\": [\n");
+
+      for(int i=0;i<phases.size();i++) {
+        Phase p = phases.get(i);
+        double seconds = p.seconds();
+
+        out.write("    {\"name\": \"" + p.name() + "\"" +
+                  ", \"seconds\": " + fmt(seconds) +
+                  ", \"gcCount\": " + p.gcCount +
+                  ", \"gcTimeMs\": " + p.gcTime +
+                  ", \"serverAllocatedBytes\": " + p.allocated +
+                  ", \"classes\": {");
+        sep = "";
+        for(Map.Entry<String,Stats> e : p.stats.entrySet()) {
+          Stats s = e.getValue();
+          long  n = s.requests.sum();
+
+          out.write(sep + "\n      \"" + e.getKey() + "\": {" +
+                    "\"requests\": " + n +
+                    ", \"throughput\": " + fmt(n / seconds) +
+                    ", \"errors\": " + s.errors.sum() +
+                    ", \"bytes\": " + s.bytes.sum() +
+                    ", \"p50Ms\": " + fmt(s.quantile(0.5)) +
+                    ", \"p99Ms\": " + fmt(s.quantile(0.99)) +
+                    ", \"p999Ms\": " + fmt(s.quantile(0.999)) +
+                    ", \"maxMs\": " + fmt(s.latency.getMaxValue() / 1e6) +
+                    "}");
+          sep = ",";
+        }
+        out.write("}}" + (i + 1 < phases.size() ? "," : "") + "\n");
+      }
+      out.write("  ]\n}\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  static String fmt(double d) {
+    return String.format(Locale.ROOT,"%.3f",d);
+  }
+}
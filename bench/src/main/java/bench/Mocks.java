@@ -0,0 +1,159 @@
+package bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Request and response stand-ins, so the servlet runs without a
+ * container. Methods not handled return null, false or zero.
+ */
+public final class Mocks {
+  private Mocks() {
+  }
+
+  /**
+   * Response body that only counts the bytes written
+   */
+  public static class Output extends ServletOutputStream {
+    private long count;
+
+    /**
+     * Last content type set on the response
+     */
+    public String contentType;
+
+    public void write(int b) {
+      count++;
+    }
+
+    public void write(byte[] b,int off,int len) {
+      count += len;
+    }
+
+    public boolean isReady() {
+      return true;
+    }
+
+    public void setWriteListener(WriteListener listener) {
+    }
+
+    /**
+     * Bytes written since the last call
+     */
+    public long take() {
+      long n = count;
+      count = 0;
+      return n;
+    }
+  }
+
+  /**
+   * A GET of http://localhost:8080/zipview + pathInfo, without headers
+   */
+  public static HttpServletRequest request(final String pathInfo) {
+    final Map<String,Object> attributes = new HashMap<String,Object>();
+    final HttpSession session = (HttpSession) proxy(HttpSession.class,
+                                                     new InvocationHandler() {
+      public Object invoke(Object p,Method m,Object[] a) {
+        String name = m.getName();
+
+        if(name.equals("getAttribute"))
+          return attributes.get(a[0]);
+        if(name.equals("setAttribute"))
+          attributes.put((String) a[0],a[1]);
+        else if(name.equals("removeAttribute"))
+          attributes.remove(a[0]);
+        return defaultValue(m);
+      }
+    });
+
+    return (HttpServletRequest) proxy(HttpServletRequest.class,
+                                      new InvocationHandler() {
+      public Object invoke(Object p,Method m,Object[] a) {
+        String name = m.getName();
+
+        if(name.equals("getPathInfo"))
+          return pathInfo;
+        if(name.equals("getServletPath"))
+          return "/zipview";
+        if(name.equals("getContextPath"))
+          return "";
+        if(name.equals("getScheme"))
+          return "http";
+        if(name.equals("getServerName"))
+          return "localhost";
+        if(name.equals("getServerPort"))
+          return 8080;
+        if(name.equals("getProtocol"))
+          return "HTTP/1.1";
+        if(name.equals("getMethod"))
+          return "GET";
+        if(name.equals("getDateHeader"))
+          return -1L;
+        if(name.equals("getHeaders"))
+          return Collections.enumeration(Collections.<String>emptyList());
+        if(name.equals("getSession"))
+          return session;
+        if(name.equals("getRequestURL"))
+          return new StringBuffer("http://localhost:8080/zipview" +
+                                  (pathInfo != null ? pathInfo : ""));
+        return defaultValue(m);
+      }
+    });
+  }
+
+  /**
+   * A response writing to out, which ignores headers other than the
+   * content type
+   */
+  public static HttpServletResponse response(final Output out) {
+    return (HttpServletResponse) proxy(HttpServletResponse.class,
+                                       new InvocationHandler() {
+      public Object invoke(Object p,Method m,Object[] a) {
+        String name = m.getName();
+
+        if(name.equals("getOutputStream"))
+          return out;
+        if(name.equals("setContentType"))
+          out.contentType = (String) a[0];
+        return defaultValue(m);
+      }
+    });
+  }
+
+  private static Object proxy(Class<?> type,InvocationHandler handler) {
+    return Proxy.newProxyInstance(Mocks.class.getClassLoader(),
+                                  new Class<?>[] { type },handler);
+  }
+
+  private static Object defaultValue(Method m) {
+    Class<?> type = m.getReturnType();
+
+    if(!type.isPrimitive() || type == void.class)
+      return null;
+    if(type == boolean.class)
+      return false;
+    if(type == long.class)
+      return 0L;
+    if(type == char.class)
+      return (char) 0;
+    if(type == float.class)
+      return 0f;
+    if(type == double.class)
+      return 0d;
+    if(type == byte.class)
+      return (byte) 0;
+    if(type == short.class)
+      return (short) 0;
+    return 0;
+  }
+}
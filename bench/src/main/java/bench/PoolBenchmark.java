@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ResourcePool acquire and release under contention.
+ * Each thread takes a resource, holds it for work tokens of CPU and
+ * gives it back; past size threads, acquires wait. Scores are the
+ * throughput of all the threads together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+  /**
+   * Resources in the pool, INFLATERS of ZipArchive by default
+   */
+  @Param({"10"})
+  int size;
+
+  /**
+   * Time a resource is held, in Blackhole.consumeCPU tokens
+   */
+  @Param({"0", "100"})
+  long work;
+
+  private PoolDriver driver;
+
+  @Setup
+  public void setUp() {
+    driver = Drivers.load(PoolDriver.class,"BenchPool");
+    driver.create(size);
+  }
+
+  private void acquireRelease() throws InterruptedException {
+    Object handle = driver.acquire();
+
+    if(work > 0)
+      Blackhole.consumeCPU(work);
+    driver.release(handle);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void threads1() throws InterruptedException {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void threads4() throws InterruptedException {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void threads16() throws InterruptedException {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void threads64() throws InterruptedException {
+    acquireRelease();
+  }
+}
@@ -0,0 +1,21 @@
+package bench;
+
+/**
+ * Calls into ResourcePool, implemented by BenchPool
+ */
+public interface PoolDriver {
+  /**
+   * Create a pool of at most size resources
+   */
+  void create(int size);
+
+  /**
+   * Take a resource, waiting if none is free; returns its handle
+   */
+  Object acquire() throws InterruptedException;
+
+  /**
+   * Give back a resource taken by acquire
+   */
+  void release(Object handle);
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the init file into a ZipRepository, as at startup and on
+ * ?reload. The zips aren't opened.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+  /**
+   * ZipFile elements in the init file
+   */
+  @Param({"100", "10000"})
+  int zips;
+
+  private RepositoryDriver driver;
+  private File config;
+
+  @Setup
+  public void setUp() throws Exception {
+    driver = Drivers.load(RepositoryDriver.class,"BenchRepository");
+    config = Archives.config(zips,Archives.zip(16,1024,"deflated"));
+  }
+
+  @Benchmark
+  public int load() throws Exception {
+    return driver.load(config);
+  }
+}
@@ -0,0 +1,13 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * Loads init files with ZipRepository, implemented by BenchRepository
+ */
+public interface RepositoryDriver {
+  /**
+   * Load an init file; returns the number of zips read
+   */
+  int load(File config) throws Exception;
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the request path and content type lookup, done on every
+ * request. Cycles over a few typical paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+  static final String[] PATHS = {
+    "/docs/index.html",
+    "/docs/api/java/util/zip/ZipFile.html",
+    "/javadoc/",
+    "/images/logo.PNG",
+    "/src/main/java/org/example/deep/nested/Source.java",
+    "/README"
+  };
+
+  private ServletDriver driver;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    driver = Drivers.load(ServletDriver.class,"BenchServlet");
+  }
+
+  private String nextPath() {
+    if(++next >= PATHS.length)
+      next = 0;
+    return PATHS[next];
+  }
+
+  @Benchmark
+  public String getRequestedAlias() {
+    return driver.getRequestedAlias(nextPath());
+  }
+
+  @Benchmark
+  public String getRequestedFile() {
+    return driver.getRequestedFile(nextPath());
+  }
+
+  @Benchmark
+  public String guessContentType() {
+    return driver.guessContentType(nextPath());
+  }
+}
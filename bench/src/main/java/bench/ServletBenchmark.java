@@ -0,0 +1,79 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving entries and listings of a synthetic zip.
+ * Each call serves the next file entry, so reads cycle over the whole
+ * archive. Change the archive with -p entries=... -p entrySize=...
+ * -p method=stored,deflated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletBenchmark {
+  @Param({"1000"})
+  int entries;
+
+  @Param({"4096", "262144"})
+  int entrySize;
+
+  @Param({"deflated", "stored"})
+  String method;
+
+  private ServletDriver driver;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    driver = Drivers.load(ServletDriver.class,"BenchServlet");
+    driver.open(Archives.zip(entries,entrySize,method));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    driver.close();
+  }
+
+  private int nextFile() {
+    if(++next >= driver.files())
+      next = 0;
+    return next;
+  }
+
+  @Benchmark
+  public long sendFile() throws Exception {
+    return driver.sendFile(nextFile());
+  }
+
+  @Benchmark
+  public long sendHexFile() throws Exception {
+    return driver.sendHexFile(nextFile());
+  }
+
+  @Benchmark
+  public long showDir() throws Exception {
+    return driver.showDir("d" + (nextFile() % Archives.DIRECTORIES));
+  }
+
+  @Benchmark
+  public long showEntireZip() throws Exception {
+    return driver.showEntireZip();
+  }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * Calls into ZipViewServlet, implemented by BenchServlet.
+ * The page and transfer calls return the bytes written, for the
+ * benchmarks to consume.
+ */
+public interface ServletDriver {
+  /**
+   * Serve a zip file
+   */
+  void open(File zip) throws Exception;
+
+  /**
+   * Number of file entries of the zip
+   */
+  int files();
+
+  /**
+   * Send the i-th file entry through sendFile
+   */
+  long sendFile(int i) throws Exception;
+
+  /**
+   * Send the i-th file entry through sendHexFile, whole
+   */
+  long sendHexFile(int i) throws Exception;
+
+  /**
+   * List a directory of the zip through showDir
+   */
+  long showDir(String path) throws Exception;
+
+  /**
+   * Build and send the page of all the entries through showEntireZip
+   */
+  long showEntireZip() throws Exception;
+
+  String getRequestedAlias(String pathInfo);
+
+  String getRequestedFile(String pathInfo);
+
+  /**
+   * Content type set by guessContentType
+   */
+  String guessContentType(String filename);
+
+  void close();
+}
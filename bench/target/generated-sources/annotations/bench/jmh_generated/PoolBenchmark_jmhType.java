@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class PoolBenchmark_jmhType extends PoolBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class RepositoryBenchmark_jmhType extends RepositoryBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class RequestBenchmark_jmhType extends RequestBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class ServletBenchmark_jmhType extends ServletBenchmark_jmhType_B3 {
+}
+
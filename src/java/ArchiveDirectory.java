@@ -0,0 +1,296 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of a zip archive, with its subdirectories and files.
+ * The tree is built once from the central directory, so a listing
+ * costs as much as the directory has children. Directories with no
+ * entry of their own (only implied by the paths of their files) are
+ * included.
+ */
+public class ArchiveDirectory {
+  static final ArchiveDirectory[] NO_DIRS  = new ArchiveDirectory[0];
+  static final ArchiveEntry[]     NO_FILES = new ArchiveEntry[0];
+
+  static final Comparator<ArchiveDirectory> DIR_ORDER =
+    new Comparator<ArchiveDirectory>() {
+      public int compare(ArchiveDirectory a,ArchiveDirectory b) {
+        return a.name.compareTo(b.name);
+      }
+    };
+
+  static final Comparator<ArchiveEntry> FILE_ORDER =
+    new Comparator<ArchiveEntry>() {
+      public int compare(ArchiveEntry a,ArchiveEntry b) {
+        return a.getName().compareTo(b.getName());
+      }
+    };
+
+  /**
+   * Name within the parent directory, without the trailing '/'
+   */
+  private final String name;
+
+  /**
+   * Path from the root of the archive, with a trailing '/' ("" for
+   * the root)
+   */
+  private final String path;
+
+  /**
+   * The directory entry, or null for an implicit directory
+   */
+  private ArchiveEntry entry;
+
+  private ArchiveDirectory[] dirs  = NO_DIRS;
+  private ArchiveEntry[]     files = NO_FILES;
+
+  /**
+   * Uncompressed size of the files under this directory
+   */
+  private long size;
+
+  /**
+   * Latest modification time under this directory
+   */
+  private long time = -1;
+
+  /**
+   * Children while the tree is being built
+   */
+  private HashMap<String,ArchiveDirectory> dirMap;
+  private List<ArchiveEntry>               fileList;
+
+  ArchiveDirectory(String name,String path) {
+    this.name = name;
+    this.path = path;
+  }
+
+  /**
+   * Build the directory tree of a list of entries.
+   * Empty and "." path components are ignored, so "/a" and "./a" are
+   * listed as "a".
+   */
+  static ArchiveDirectory build(ArchiveEntry[] entries) {
+    ArchiveDirectory root = new ArchiveDirectory("","");
+
+    for(ArchiveEntry e : entries) {
+      String[] parts = e.getName().split("/");
+      ArchiveDirectory d = root;
+      int last = parts.length - 1;
+
+      if(e.isDirectory())
+        last++;
+
+      for(int i=0;i<last;i++)
+        if(parts[i].length() != 0 && !".".equals(parts[i]))
+          d = d.subdirectory(parts[i]);
+
+      if(e.isDirectory()) {
+        if(d.entry == null && d != root)
+          d.entry = e;
+      } else if(parts.length != 0 && parts[last].length() != 0) {
+        if(d.fileList == null)
+          d.fileList = new ArrayList<ArchiveEntry>();
+        d.fileList.add(e);
+      }
+    }
+
+    root.freeze();
+    return root;
+  }
+
+  /**
+   * Child directory, created if missing
+   */
+  private ArchiveDirectory subdirectory(String child) {
+    if(dirMap == null)
+      dirMap = new HashMap<String,ArchiveDirectory>();
+
+    ArchiveDirectory d = dirMap.get(child);
+    if(d == null) {
+      d = new ArchiveDirectory(child,path + child + "/");
+      dirMap.put(child,d);
+    }
+    return d;
+  }
+
+  /**
+   * Turn the building maps into sorted arrays and sum up sizes and
+   * times, depth first
+   */
+  private void freeze() {
+    if(dirMap != null) {
+      dirs = dirMap.values().toArray(NO_DIRS);
+      Arrays.sort(dirs,DIR_ORDER);
+      dirMap = null;
+    }
+    if(fileList != null) {
+      files = fileList.toArray(NO_FILES);
+      Arrays.sort(files,FILE_ORDER);
+      fileList = null;
+    }
+
+    for(ArchiveDirectory d : dirs)
+      d.freeze();
+    totals();
+  }
+
+  /**
+   * Sum up sizes and times of the children, once they have theirs
+   */
+  private void totals() {
+    if(entry != null)
+      time = entry.getTime();
+
+    for(ArchiveDirectory d : dirs) {
+      size += d.size;
+      time  = Math.max(time,d.time);
+    }
+    for(ArchiveEntry e : files) {
+      if(e.getSize() > 0)
+        size += e.getSize();
+      time = Math.max(time,e.getTime());
+    }
+  }
+
+  /**
+   * Write the tree, depth first, with entries as their positions in
+   * the entry list
+   */
+  void write(DataOutputStream out,Map<ArchiveEntry,Integer> positions)
+    throws IOException {
+
+    byte[] n = name.getBytes(ZipArchive.UTF8);
+
+    out.writeShort(n.length);
+    out.write(n);
+    out.writeInt(entry != null ? positions.get(entry) : -1);
+    out.writeInt(dirs.length);
+    out.writeInt(files.length);
+    for(ArchiveEntry e : files)
+      out.writeInt(positions.get(e));
+    for(ArchiveDirectory d : dirs)
+      d.write(out,positions);
+  }
+
+  /**
+   * Read a tree written by write, at the position of in
+   */
+  static ArchiveDirectory read(ByteBuffer in,ArchiveEntry[] entries,
+                               String parent) {
+    byte[] n = new byte[in.getShort() & 0xFFFF];
+    in.get(n);
+
+    String name = new String(n,ZipArchive.UTF8);
+    ArchiveDirectory d =
+      new ArchiveDirectory(name,parent == null ? "" : parent + name + "/");
+
+    int e = in.getInt();
+    if(e >= 0)
+      d.entry = entries[e];
+
+    int ndirs  = in.getInt();
+    int nfiles = in.getInt();
+
+    if(nfiles > 0) {
+      d.files = new ArchiveEntry[nfiles];
+      for(int i=0;i<nfiles;i++)
+        d.files[i] = entries[in.getInt()];
+    }
+    if(ndirs > 0) {
+      d.dirs = new ArchiveDirectory[ndirs];
+      for(int i=0;i<ndirs;i++)
+        d.dirs[i] = read(in,entries,d.path);
+    }
+
+    d.totals();
+    return d;
+  }
+
+  /**
+   * Find a directory below this one by its relative path, with or
+   * without the trailing '/'
+   */
+  ArchiveDirectory find(String relative) {
+    ArchiveDirectory d = this;
+
+    for(String part : relative.split("/")) {
+      if(part.length() == 0 || ".".equals(part))
+        continue;
+
+      int i = Arrays.binarySearch(d.dirs,new ArchiveDirectory(part,null),
+                                  DIR_ORDER);
+      if(i < 0)
+        return null;
+      d = d.dirs[i];
+    }
+
+    return d;
+  }
+
+  /**
+   * Name within the parent directory
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Path from the root of the archive, ending in '/' ("" for the root)
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * The directory entry, or null if the directory is only implied by
+   * the paths of its files
+   */
+  public ArchiveEntry getEntry() {
+    return entry;
+  }
+
+  /**
+   * Subdirectories, sorted by name
+   */
+  public ArchiveDirectory[] getDirectories() {
+    return dirs;
+  }
+
+  /**
+   * Files, sorted by name
+   */
+  public ArchiveEntry[] getFiles() {
+    return files;
+  }
+
+  /**
+   * Uncompressed size of the files under this directory
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Latest modification time under this directory, -1 if unknown
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Name of a file within its directory
+   */
+  public static String fileName(ArchiveEntry e) {
+    String n = e.getName();
+    return n.substring(n.lastIndexOf('/') + 1);
+  }
+}
@@ -0,0 +1,67 @@
+import java.util.zip.ZipEntry;
+
+/**
+ * Zip entry as read from the central directory, with the location of
+ * its data inside the archive.
+ */
+public class ArchiveEntry extends ZipEntry {
+  /**
+   * Offset of the local file header
+   */
+  long localHeaderOffset;
+
+  /**
+   * Compression method, which may be one ZipEntry doesn't accept
+   */
+  int method;
+
+  /**
+   * General purpose bit flag
+   */
+  int flags;
+
+  /**
+   * Offset of the entry data, -1 until the local header is read
+   */
+  volatile long dataOffset = -1;
+
+  /**
+   * Modification time when it was set from a saved index, else -1 and
+   * ZipEntry has it
+   */
+  long time = -1;
+
+  public ArchiveEntry(String name) {
+    super(name);
+  }
+
+  @Override
+  public long getTime() {
+    return time != -1 ? time : super.getTime();
+  }
+
+  @Override
+  public void setTime(long time) {
+    this.time = -1;
+    super.setTime(time);
+  }
+
+  @Override
+  public int getMethod() {
+    return method;
+  }
+
+  /**
+   * True if the entry data is encrypted
+   */
+  public boolean isEncrypted() {
+    return (flags & 1) != 0;
+  }
+
+  /**
+   * True if the bytes on the archive are the entry contents
+   */
+  public boolean isStored() {
+    return getMethod() == STORED && !isEncrypted();
+  }
+}
@@ -0,0 +1,175 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Usage figures of the archive handle of a ZipRecord.
+ * Counters are updated by the record and by its ZipArchive.
+ */
+public class ArchiveStats implements ArchiveStatsMBean, Metrics.Source {
+  private ZipRecord record;
+
+  final LongAdder opens          = new LongAdder();
+  final LongAdder openFailures   = new LongAdder();
+  final LongAdder flushes        = new LongAdder();
+  final LongAdder replacements   = new LongAdder();
+  final LongAdder idleCloses     = new LongAdder();
+  final LongAdder evictions      = new LongAdder();
+  final LongAdder budgetTimeouts = new LongAdder();
+  final LongAdder entryStreams   = new LongAdder();
+  final LongAdder reads          = new LongAdder();
+  final LongAdder bytesRead      = new LongAdder();
+
+  /**
+   * Time opening the archive and reading its central directory
+   */
+  final LatencyHistogram openTime = new LatencyHistogram();
+
+  /**
+   * Time of each read or transfer on the archive file
+   */
+  final LatencyHistogram readTime = new LatencyHistogram();
+
+  public ArchiveStats(ZipRecord record) {
+    this.record = record;
+  }
+
+  /**
+   * Inflater pool of the open archive, or null
+   */
+  private ResourcePool inflaters() {
+    ZipArchive archive = record.peekArchive();
+    return archive != null ? archive.getInflaterPool() : null;
+  }
+
+  public String[] getLabels() {
+    return new String[] { "archive", record.virtualDir };
+  }
+
+  public void collect(Metrics.Collector c) {
+    c.gauge("archive_valid","1 if the archive could be opened",
+            record.valid ? 1 : 0);
+    c.gauge("archive_handle_open","1 if the archive is open",
+            isOpen() ? 1 : 0);
+    c.counter("archive_opens_total","Archive opens",getOpens());
+    c.counter("archive_open_failures_total","Failed archive opens",
+              getOpenFailures());
+    c.histogram("archive_open","Time opening an archive and reading its central directory",
+                openTime);
+    c.counter("archive_flushes_total","Sweeps that released idle inflaters",
+              getFlushes());
+    c.counter("archive_replacements_total","Archive files replaced while open",
+              getReplacements());
+    c.counter("archive_idle_closes_total","Archives closed after staying unused",
+              getIdleCloses());
+    c.counter("archive_evictions_total","Archives closed to open others within the handle budget",
+              getEvictions());
+    c.counter("archive_budget_timeouts_total","Opens that found no handle in time",
+              getBudgetTimeouts());
+    c.gauge("archive_active_readers","Streams and transfers in progress",
+            getActiveReaders());
+    c.counter("archive_entry_streams_total","Entry streams opened",
+              getEntryStreams());
+    c.counter("archive_reads_total","Reads and transfers from the archive file",
+              getReads());
+    c.counter("archive_read_bytes_total","Bytes read from the archive file",
+              getBytesRead());
+    c.histogram("archive_read","Time of each read or transfer from the archive file",
+                readTime);
+
+    ResourcePool pool = inflaters();
+    if(pool != null)
+      PoolStats.collect(c,"archive_inflater_",pool);
+  }
+
+  public String getVirtualDir() {
+    return record.virtualDir;
+  }
+
+  public String getFile() {
+    return record.file;
+  }
+
+  public boolean isValid() {
+    return record.valid;
+  }
+
+  public boolean isOpen() {
+    return record.peekArchive() != null;
+  }
+
+  public long getOpens() {
+    return opens.sum();
+  }
+
+  public long getOpenFailures() {
+    return openFailures.sum();
+  }
+
+  public long getOpenTimeTotalMicros() {
+    return openTime.getSum() / 1000;
+  }
+
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  public long getReplacements() {
+    return replacements.sum();
+  }
+
+  public long getIdleCloses() {
+    return idleCloses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getBudgetTimeouts() {
+    return budgetTimeouts.sum();
+  }
+
+  public int getActiveReaders() {
+    ZipArchive archive = record.peekArchive();
+    return archive != null ? archive.getActiveReaders() : 0;
+  }
+
+  public long getEntryStreams() {
+    return entryStreams.sum();
+  }
+
+  public long getReads() {
+    return reads.sum();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  public long getReadTimeP50Micros() {
+    return readTime.quantile(0.5) / 1000;
+  }
+
+  public long getReadTimeP99Micros() {
+    return readTime.quantile(0.99) / 1000;
+  }
+
+  public int getInflatersAllocated() {
+    ResourcePool pool = inflaters();
+    return pool != null ? pool.getUsedSize() - pool.getFreeEntries() : 0;
+  }
+
+  public int getInflatersIdle() {
+    ResourcePool pool = inflaters();
+    return pool != null ? pool.getFreeEntries() : 0;
+  }
+
+  public long getInflaterCreations() {
+    ResourcePool pool = inflaters();
+    return pool != null ? pool.getCreations() : 0;
+  }
+
+  public long getInflaterDestroys() {
+    ResourcePool pool = inflaters();
+    return pool != null ? pool.getDestroys() : 0;
+  }
+}
@@ -0,0 +1,27 @@
+/**
+ * JMX view of the archive handle of a ZipRecord
+ */
+public interface ArchiveStatsMBean {
+  public String getVirtualDir();
+  public String getFile();
+  public boolean isValid();
+  public boolean isOpen();
+  public long getOpens();
+  public long getOpenFailures();
+  public long getOpenTimeTotalMicros();
+  public long getFlushes();
+  public long getReplacements();
+  public long getIdleCloses();
+  public long getEvictions();
+  public long getBudgetTimeouts();
+  public int getActiveReaders();
+  public long getEntryStreams();
+  public long getReads();
+  public long getBytesRead();
+  public long getReadTimeP50Micros();
+  public long getReadTimeP99Micros();
+  public int getInflatersAllocated();
+  public int getInflatersIdle();
+  public long getInflaterCreations();
+  public long getInflaterDestroys();
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches the init file and the zip files of a repository, and tells
+ * a Listener when they change.
+ * Files being written give many events; a change is reported once the
+ * file has been quiet for SETTLE milliseconds.
+ */
+public class ArchiveWatcher implements Runnable {
+  private static Logger logger =
+      Logger.getLogger(ArchiveWatcher.class.getName());
+
+  /**
+   * Quiet time before a change is reported, in milliseconds
+   */
+  static final long SETTLE = 1000;
+
+  /**
+   * Told of the changes
+   */
+  public interface Listener {
+    /**
+     * The init file changed
+     */
+    void configChanged();
+
+    /**
+     * The zip file of a record changed
+     */
+    void archiveChanged(ZipRecord record);
+  }
+
+  private final WatchService service;
+  private final Path         config;
+  private final Listener     listener;
+
+  /**
+   * Records of the watched repository, by absolute file path
+   */
+  private volatile Map<Path,List<ZipRecord>> records =
+    new HashMap<Path,List<ZipRecord>>();
+
+  /**
+   * Directories already registered
+   */
+  private final Set<Path> directories =
+    ConcurrentHashMap.<Path>newKeySet();
+
+  /**
+   * Changed files not reported yet, with the time of their last event.
+   * Only touched by the watcher thread.
+   */
+  private final Map<Path,Long> pending = new HashMap<Path,Long>();
+
+  public ArchiveWatcher(String config,Listener listener) throws IOException {
+    this.service  = FileSystems.getDefault().newWatchService();
+    this.config   = Paths.get(config).toAbsolutePath();
+    this.listener = listener;
+
+    register(this.config);
+  }
+
+  /**
+   * Start the watcher thread
+   */
+  public void start() {
+    Thread t = new Thread(this,"ZipViewServlet watcher");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Stop watching
+   */
+  public void close() {
+    try {
+      service.close();
+    } catch(IOException e) {
+    }
+  }
+
+  /**
+   * Watch the zip files of a repository, instead of the previous one
+   */
+  public void watch(ZipRepository repository) {
+    Map<Path,List<ZipRecord>> m = new HashMap<Path,List<ZipRecord>>();
+
+    for(ZipRecord zr : ZipViewServlet.allRecords(repository)) {
+      Path p = Paths.get(zr.file).toAbsolutePath();
+      List<ZipRecord> l = m.get(p);
+
+      if(l == null)
+        m.put(p,l = new ArrayList<ZipRecord>(1));
+      l.add(zr);
+      register(p);
+    }
+
+    records = m;
+  }
+
+  /**
+   * Watch the directory of a file
+   */
+  private void register(Path file) {
+    Path dir = file.getParent();
+
+    if(dir == null || !directories.add(dir))
+      return;
+
+    try {
+      dir.register(service,
+                   StandardWatchEventKinds.ENTRY_CREATE,
+                   StandardWatchEventKinds.ENTRY_MODIFY,
+                   StandardWatchEventKinds.ENTRY_DELETE);
+    } catch(IOException e) {
+      // Missing directory: its files are found again on the next watch
+      directories.remove(dir);
+      logger.warning("Can't watch " + dir + ": " + e);
+    }
+  }
+
+  public void run() {
+    try {
+      while(true) {
+        WatchKey key = pending.isEmpty() ?
+          service.take() : service.poll(SETTLE,TimeUnit.MILLISECONDS);
+
+        if(key != null) {
+          Path dir = (Path) key.watchable();
+
+          for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              changedAll();
+              continue;
+            }
+            changed(dir.resolve((Path) event.context()));
+          }
+
+          if(!key.reset())
+            directories.remove(dir);
+        }
+
+        report();
+      }
+    } catch(ClosedWatchServiceException e) {
+    } catch(InterruptedException e) {
+    }
+  }
+
+  /**
+   * Note a change of a file, if it is watched
+   */
+  private void changed(Path file) {
+    if(file.equals(config) || records.containsKey(file))
+      pending.put(file,System.currentTimeMillis());
+  }
+
+  /**
+   * Events were lost: assume every file changed
+   */
+  private void changedAll() {
+    long now = System.currentTimeMillis();
+
+    pending.put(config,now);
+    for(Path p : records.keySet())
+      pending.put(p,now);
+  }
+
+  /**
+   * Report the changes that have settled
+   */
+  private void report() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Path,Long>> i = pending.entrySet().iterator();
+
+    while(i.hasNext()) {
+      Map.Entry<Path,Long> e = i.next();
+
+      if(now - e.getValue() < SETTLE)
+        continue;
+      i.remove();
+
+      try {
+        if(e.getKey().equals(config)) {
+          logger.info("Changed: " + config);
+          listener.configChanged();
+        } else {
+          List<ZipRecord> l = records.get(e.getKey());
+          if(l == null)
+            continue;
+
+          logger.info("Changed: " + e.getKey());
+          for(ZipRecord zr : l)
+            listener.archiveChanged(zr);
+        }
+      } catch(RuntimeException x) {
+        logger.warning("Can't handle change of " + e.getKey() + ": " + x);
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Copies a stream to an async response with non-blocking writes.
+ * Bytes are moved only while the connection can take them; when it
+ * can't, the container thread is given back and the copy resumes on
+ * the next onWritePossible.
+ */
+public class AsyncPump implements WriteListener, AsyncListener {
+  private static Logger logger = Logger.getLogger(AsyncPump.class.getName());
+
+  private final AsyncContext        ctx;
+  private final ServletOutputStream out;
+  private final InputStream         in;
+  private final BufferPool          buffers;
+  private final ResourcePool.Handle handle;
+
+  /**
+   * The stream and the buffer are freed by one thread only, and never
+   * while onWritePossible is using them: a finish asked for while
+   * WRITING is left to the writing thread
+   */
+  private static final int IDLE = 0, WRITING = 1, CLOSING = 2, CLOSED = 3;
+  private final AtomicInteger state = new AtomicInteger(IDLE);
+
+  /**
+   * The last write may not be through, so the container may still
+   * hold the buffer. Handed over along with state.
+   */
+  private boolean pending;
+
+  AsyncPump(AsyncContext ctx,ServletOutputStream out,InputStream in,
+            BufferPool buffers,long length) {
+    this.ctx     = ctx;
+    this.out     = out;
+    this.in      = in;
+    this.buffers = buffers;
+    this.handle  = buffers.getBuffer(length);
+  }
+
+  /**
+   * Start copying in to the response of ctx
+   */
+  static void start(AsyncContext ctx,InputStream in,BufferPool buffers,
+                    long length)
+    throws IOException {
+
+    ServletOutputStream out = ctx.getResponse().getOutputStream();
+    AsyncPump pump = new AsyncPump(ctx,out,in,buffers,length);
+
+    ctx.addListener(pump);
+    out.setWriteListener(pump);
+  }
+
+  public void onWritePossible() throws IOException {
+    if(!state.compareAndSet(IDLE,WRITING))
+      return;
+
+    ByteBuffer buffer = (ByteBuffer) handle.get();
+    byte[] b   = buffer.array();
+    int    off = buffer.arrayOffset();
+    int    len = buffer.capacity();
+    boolean eof = false;
+
+    try {
+      while(out.isReady()) {
+        pending = false;
+
+        int n = in.read(b,off,len);
+        if(n == -1) {
+          eof = true;
+          break;
+        }
+
+        pending = true;
+        out.write(b,off,n);
+      }
+    } finally {
+      if(!state.compareAndSet(WRITING,eof ? CLOSED : IDLE)) {
+        // Finished meanwhile by an error, a timeout or the end of the
+        // request, which see to completing it
+        state.set(CLOSED);
+        eof = false;
+        free();
+      } else if(eof) {
+        free();
+      }
+    }
+
+    if(eof)
+      ctx.complete();
+  }
+
+  public void onError(Throwable t) {
+    logger.fine("Async transfer failed: " + t);
+    finish();
+    ctx.complete();
+  }
+
+  public void onComplete(AsyncEvent event) {
+    finish();
+  }
+
+  public void onTimeout(AsyncEvent event) {
+    logger.fine("Async transfer timed out");
+    finish();
+    ctx.complete();
+  }
+
+  public void onError(AsyncEvent event) {
+    finish();
+  }
+
+  public void onStartAsync(AsyncEvent event) {
+  }
+
+  /**
+   * Close the stream and give back the buffer, once, or leave it to
+   * onWritePossible if it is running
+   */
+  private void finish() {
+    for(;;) {
+      switch(state.get()) {
+        case IDLE:
+          if(state.compareAndSet(IDLE,CLOSED)) {
+            free();
+            return;
+          }
+          break;
+
+        case WRITING:
+          if(state.compareAndSet(WRITING,CLOSING))
+            return;
+          break;
+
+        default:
+          return;
+      }
+    }
+  }
+
+  private void free() {
+    try {
+      in.close();
+    } catch(IOException e) {
+    }
+
+    if(pending)
+      buffers.abandon(handle);
+    else
+      buffers.release(handle);
+  }
+}
@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of reusable transfer buffers, in a few size classes.
+ * Buffers are on the heap: the streams they are copied through take
+ * byte arrays.
+ * Requests are served from the smallest class that fits the expected
+ * transfer size; when a class is exhausted a throw-away buffer is
+ * allocated instead of waiting for one to be released.
+ */
+public class BufferPool {
+  /**
+   * Buffer sizes, smallest first
+   */
+  static final int[] SIZES = { 8 * 1024, 64 * 1024, 256 * 1024 };
+
+  /**
+   * Buffers kept per size class
+   */
+  static final int BUFFERS_PER_SIZE = 32;
+
+  /**
+   * One resource pool per size class
+   */
+  private ResourcePool[] pools;
+
+  /**
+   * Instantiate the buffer pool
+   */
+  public BufferPool() {
+    pools = new ResourcePool[SIZES.length];
+    for(int i=0;i<SIZES.length;i++) {
+      final int size = SIZES[i];
+
+      pools[i] = new ResourcePool(BUFFERS_PER_SIZE,new ResourceCreator() {
+        public Object createResource() {
+          return ByteBuffer.allocate(size);
+        }
+
+        public void destroyResource(Object resource) {
+        }
+      });
+    }
+  }
+
+  /**
+   * Figures of each size class, named after the buffer size
+   */
+  public PoolStats[] getStats() {
+    PoolStats[] stats = new PoolStats[SIZES.length];
+
+    for(int i=0;i<SIZES.length;i++)
+      stats[i] = new PoolStats("buffers-" + SIZES[i],pools[i]);
+
+    return stats;
+  }
+
+  /**
+   * Index of the size class for an expected transfer size.
+   * A negative size means unknown and gets the largest buffer.
+   */
+  private static int sizeClass(long size) {
+    if(size >= 0)
+      for(int i=0;i<SIZES.length;i++)
+        if(size <= SIZES[i])
+          return i;
+
+    return SIZES.length - 1;
+  }
+
+  /**
+   * Get a cleared buffer suited for transferring size bytes.
+   * The buffer is the handle's ByteBuffer.
+   */
+  public ResourcePool.Handle getBuffer(long size) {
+    int c = sizeClass(size);
+    ResourcePool.Handle h = pools[c].tryGetResource();
+
+    if(h == null)
+      h = new ResourcePool.Handle(ByteBuffer.allocate(SIZES[c]),null);
+
+    ((ByteBuffer) h.get()).clear();
+    return h;
+  }
+
+  /**
+   * Return a buffer obtained with getBuffer
+   */
+  public void release(ResourcePool.Handle h) {
+    pools[sizeClass(((ByteBuffer) h.get()).capacity())].freeResource(h);
+  }
+
+  /**
+   * Give up a buffer obtained with getBuffer that may still be in use,
+   * instead of returning it
+   */
+  public void abandon(ResourcePool.Handle h) {
+    pools[sizeClass(((ByteBuffer) h.get()).capacity())].abandonResource(h);
+  }
+}
@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One byte range from an HTTP Range header
+ */
+public class ByteRange {
+  /**
+   * Most ranges accepted on a single request, after merging overlaps
+   */
+  static final int MAX_RANGES = 32;
+
+  /**
+   * First byte of the range
+   */
+  public long start;
+
+  /**
+   * Last byte of the range, inclusive
+   */
+  public long end;
+
+  public ByteRange(long start,long end) {
+    this.start = start;
+    this.end   = end;
+  }
+
+  /**
+   * Number of bytes in the range
+   */
+  public long length() {
+    return end - start + 1;
+  }
+
+  /**
+   * Value of the Content-Range header for this range
+   */
+  public String contentRange(long size) {
+    return "bytes " + start + "-" + end + "/" + size;
+  }
+
+  /**
+   * Parses a Range header for a resource of a given size.
+   * Returns null when the header should be ignored (missing,
+   * malformed, unknown unit or too many ranges), and an empty list
+   * when none of the ranges can be satisfied.
+   * Overlapping ranges are merged; the order of the header is kept
+   * otherwise.
+   */
+  public static List<ByteRange> parse(String header,long size) {
+    if(header == null || size < 0)
+      return null;
+
+    header = header.trim();
+    if(!header.regionMatches(true,0,"bytes=",0,6))
+      return null;
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+
+    for(String spec : header.substring(6).split(",")) {
+      spec = spec.trim();
+      if(spec.length() == 0)
+        continue;
+
+      int dash = spec.indexOf('-');
+      if(dash == -1)
+        return null;
+
+      long start,end;
+      try {
+        if(dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if(suffix <= 0)
+            continue;
+          start = Math.max(0,size - suffix);
+          end   = size - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0,dash));
+          if(dash == spec.length() - 1) {
+            end = size - 1;
+          } else {
+            end = Long.parseLong(spec.substring(dash + 1));
+            if(end < start)
+              return null;
+            end = Math.min(end,size - 1);
+          }
+        }
+      } catch(NumberFormatException e) {
+        return null;
+      }
+
+      if(start < 0)
+        return null;
+      if(start >= size)
+        continue;
+
+      merge(ranges,new ByteRange(start,end));
+      if(ranges.size() > MAX_RANGES)
+        return null;
+    }
+
+    return ranges;
+  }
+
+  /**
+   * Adds a range to a list, merging it with any range it overlaps or
+   * touches
+   */
+  private static void merge(List<ByteRange> ranges,ByteRange range) {
+    for(int i=0;i<ranges.size();i++) {
+      ByteRange r = ranges.get(i);
+
+      if(range.start <= r.end + 1 && r.start <= range.end + 1) {
+        ranges.remove(i);
+        merge(ranges,new ByteRange(Math.min(r.start,range.start),
+                                   Math.max(r.end,range.end)));
+        return;
+      }
+    }
+
+    ranges.add(range);
+  }
+}
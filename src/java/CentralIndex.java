@@ -0,0 +1,215 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Saved central directory of an archive: its entries and directory
+ * tree, so an archive opened again after a restart skips parsing the
+ * central directory and sorting the tree.
+ * Index files are kept in a directory, named after the archive
+ * identity, and record the path, length and modification time of the
+ * archive they describe. They are mapped and decoded in one pass.
+ */
+public class CentralIndex {
+  private static Logger logger =
+      Logger.getLogger(CentralIndex.class.getName());
+
+  static final int MAGIC   = 0x5a564344; // "ZVCD"
+  static final int VERSION = 1;
+
+  /**
+   * Where indexes are saved, or null
+   */
+  private static volatile File directory;
+
+  /**
+   * Saves indexes in the background, apart from the inflate index
+   * builds so a save doesn't wait behind them; started on first use
+   */
+  private static ExecutorService writer;
+
+  /**
+   * Entries in central directory order
+   */
+  final ArchiveEntry[] entries;
+
+  /**
+   * Root of the directory tree
+   */
+  final ArchiveDirectory root;
+
+  CentralIndex(ArchiveEntry[] entries,ArchiveDirectory root) {
+    this.entries = entries;
+    this.root    = root;
+  }
+
+  /**
+   * Save indexes to a directory, null not to save them
+   */
+  public static void setDirectory(File dir) {
+    directory = dir;
+  }
+
+  /**
+   * File of the saved index of an archive, or null if indexes aren't
+   * saved
+   */
+  static File file(String identity) {
+    File dir = directory;
+
+    return dir != null ? new File(dir,identity + ".cdx") : null;
+  }
+
+  /**
+   * Load the saved index of an archive, or null if there is none or it
+   * describes another file or version
+   */
+  static CentralIndex load(File f,String archive,long length,
+                           long lastModified) {
+    if(f == null || !f.isFile())
+      return null;
+
+    try {
+      ByteBuffer in;
+      FileChannel channel = FileChannel.open(f.toPath(),StandardOpenOption.READ);
+      try {
+        in = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+      } finally {
+        channel.close();
+      }
+
+      if(in.getInt() != MAGIC || in.getInt() != VERSION ||
+         in.getLong() != length || in.getLong() != lastModified ||
+         !archive.equals(string(in,in.getShort() & 0xFFFF)))
+        return null;
+
+      ArchiveEntry[] entries = new ArchiveEntry[in.getInt()];
+      for(int i=0;i<entries.length;i++) {
+        ArchiveEntry e = new ArchiveEntry(string(in,in.getShort() & 0xFFFF));
+
+        e.localHeaderOffset = in.getLong();
+        e.setCompressedSize(in.getLong());
+        e.setSize(in.getLong());
+        e.setCrc(in.getInt() & 0xFFFFFFFFL);
+        e.method = in.getShort() & 0xFFFF;
+        e.flags  = in.getShort() & 0xFFFF;
+        e.time   = in.getLong();
+        entries[i] = e;
+      }
+
+      return new CentralIndex(entries,ArchiveDirectory.read(in,entries,null));
+    } catch(IOException e) {
+      logger.warning("Can't read " + f + ": " + e);
+    } catch(BufferUnderflowException e) {
+      logger.warning("Truncated index " + f);
+    } catch(RuntimeException e) {
+      logger.warning("Invalid index " + f + ": " + e);
+    }
+
+    return null;
+  }
+
+  private static String string(ByteBuffer in,int length) {
+    byte[] b = new byte[length];
+    in.get(b);
+    return new String(b,ZipArchive.UTF8);
+  }
+
+  /**
+   * Save the index of an archive in the background
+   */
+  static synchronized void saveLater(final File f,final String archive,
+                                     final long length,
+                                     final long lastModified,
+                                     final ArchiveEntry[] entries,
+                                     final ArchiveDirectory root) {
+    if(writer == null)
+      writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r,"CentralIndex writer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    writer.execute(new Runnable() {
+      public void run() {
+        save(f,archive,length,lastModified,entries,root);
+      }
+    });
+  }
+
+  /**
+   * Stop the writer once the saves queued are written
+   */
+  public static synchronized void shutdown() {
+    if(writer != null) {
+      writer.shutdown();
+      writer = null;
+    }
+  }
+
+  /**
+   * Save the index of an archive, replacing the file at once
+   */
+  static void save(File f,String archive,long length,long lastModified,
+                   ArchiveEntry[] entries,ArchiveDirectory root) {
+    if(f == null)
+      return;
+
+    Map<ArchiveEntry,Integer> positions =
+      new IdentityHashMap<ArchiveEntry,Integer>(entries.length * 2);
+    for(int i=0;i<entries.length;i++)
+      positions.put(entries[i],i);
+
+    File tmp = new File(f.getPath() + ".tmp");
+    try {
+      DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        byte[] a = archive.getBytes(ZipArchive.UTF8);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.writeShort(a.length);
+        out.write(a);
+        out.writeInt(entries.length);
+        for(ArchiveEntry e : entries) {
+          byte[] n = e.getName().getBytes(ZipArchive.UTF8);
+
+          out.writeShort(n.length);
+          out.write(n);
+          out.writeLong(e.localHeaderOffset);
+          out.writeLong(e.getCompressedSize());
+          out.writeLong(e.getSize());
+          out.writeInt((int) e.getCrc());
+          out.writeShort(e.method);
+          out.writeShort(e.flags);
+          out.writeLong(e.getTime());
+        }
+        root.write(out,positions);
+      } finally {
+        out.close();
+      }
+
+      if(!tmp.renameTo(f))
+        throw new IOException("can't rename " + tmp);
+    } catch(IOException e) {
+      logger.warning("Can't save " + f + ": " + e);
+      tmp.delete();
+    }
+  }
+}
@@ -0,0 +1,539 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Raw DEFLATE decoder that can start in the middle of a stream.
+ * java.util.zip.Inflater can only start on a byte boundary with an
+ * empty state, but deflate blocks start at any bit; this decoder can
+ * be primed with a bit offset and the 32KB window that precedes a
+ * block, which is what an InflateIndex checkpoint records.
+ * It also reports block boundaries while decoding, so the same class
+ * builds the checkpoints.
+ */
+public class CheckpointInflater extends InputStream {
+  /**
+   * History a match may refer to
+   */
+  static final int WINDOW = 32768;
+
+  /**
+   * Output ring: the window plus room for decoded bytes not yet read
+   */
+  static final int RING = 65536;
+  static final int RING_MASK = RING - 1;
+
+  /**
+   * Longest match
+   */
+  static final int MAX_MATCH = 258;
+
+  static final int[] LBASE = {
+    3,4,5,6,7,8,9,10,11,13,15,17,19,23,27,31,35,43,51,59,67,83,99,115,
+    131,163,195,227,258 };
+  static final int[] LEXT = {
+    0,0,0,0,0,0,0,0,1,1,1,1,2,2,2,2,3,3,3,3,4,4,4,4,5,5,5,5,0 };
+  static final int[] DBASE = {
+    1,2,3,4,5,7,9,13,17,25,33,49,65,97,129,193,257,385,513,769,1025,1537,
+    2049,3073,4097,6145,8193,12289,16385,24577 };
+  static final int[] DEXT = {
+    0,0,0,0,1,1,2,2,3,3,4,4,5,5,6,6,7,7,8,8,9,9,10,10,11,11,12,12,13,13 };
+  static final int[] CLEN_ORDER = {
+    16,17,18,0,8,7,9,6,10,5,11,4,12,3,13,2,14,1,15 };
+
+  /**
+   * Decoder states
+   */
+  static final int HEADER = 0;
+  static final int STORED = 1;
+  static final int CODES  = 2;
+  static final int DONE   = 3;
+
+  /**
+   * Canonical Huffman code, with a table for codes of up to FAST_BITS
+   * bits and a bit by bit decoder for the longer ones
+   */
+  static final class Huffman {
+    static final int FAST_BITS = 9;
+
+    final short[] count  = new short[16];
+    final short[] symbol;
+    final int[]   fast   = new int[1 << FAST_BITS];
+
+    Huffman(int symbols) {
+      symbol = new short[symbols];
+    }
+
+    /**
+     * Build the code from the length of each symbol.
+     * Incomplete codes are accepted, as deflate allows one distance
+     * code of one bit.
+     */
+    void build(int[] length,int off,int n) throws ZipException {
+      Arrays.fill(count,(short) 0);
+      Arrays.fill(fast,0);
+
+      for(int i=0;i<n;i++)
+        count[length[off + i]]++;
+      count[0] = 0;
+
+      int left = 1;
+      for(int len=1;len<16;len++) {
+        left <<= 1;
+        left -= count[len];
+        if(left < 0)
+          throw new ZipException("over-subscribed Huffman code");
+      }
+
+      short[] offs = new short[16];
+      for(int len=1;len<15;len++)
+        offs[len + 1] = (short) (offs[len] + count[len]);
+      for(int i=0;i<n;i++)
+        if(length[off + i] != 0)
+          symbol[offs[length[off + i]]++] = (short) i;
+
+      // Fast table: index by the next FAST_BITS input bits
+      int code = 0, index = 0;
+      for(int len=1;len<=FAST_BITS;len++) {
+        for(int i=0;i<count[len];i++) {
+          int rev = Integer.reverse(code) >>> (32 - len);
+          int entry = (symbol[index] << 4) | len;
+          for(int j=rev;j<(1 << FAST_BITS);j+=1 << len)
+            fast[j] = entry;
+          code++;
+          index++;
+        }
+        code <<= 1;
+      }
+    }
+  }
+
+  private static final Huffman FIXED_LIT  = new Huffman(288);
+  private static final Huffman FIXED_DIST = new Huffman(30);
+
+  static {
+    int[] l = new int[288];
+    for(int i=0;i<144;i++)   l[i] = 8;
+    for(int i=144;i<256;i++) l[i] = 9;
+    for(int i=256;i<280;i++) l[i] = 7;
+    for(int i=280;i<288;i++) l[i] = 8;
+    int[] d = new int[30];
+    Arrays.fill(d,5);
+    try {
+      FIXED_LIT.build(l,0,288);
+      FIXED_DIST.build(d,0,30);
+    } catch(ZipException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Receives the block boundaries found while decoding
+   */
+  public interface BoundaryListener {
+    /**
+     * A block starts at bit position bit of the compressed data, with
+     * out bytes decoded before it
+     */
+    void boundary(CheckpointInflater inflater,long bit,long out)
+      throws IOException;
+  }
+
+  private InputStream in;
+  private byte[]      ibuf = new byte[8192];
+  private int         ipos, ilen;
+
+  /**
+   * Bytes of compressed data taken into the bit buffer, from the
+   * start of the data
+   */
+  private long        consumed;
+
+  private long        bitbuf;
+  private int         bitcnt;
+
+  /**
+   * Zero bytes added to the bit buffer past the end of the input
+   */
+  private int         padding;
+
+  private final byte[] ring = new byte[RING];
+
+  /**
+   * Output position of the next decoded byte and of the next byte
+   * read, counted from the start of the entry
+   */
+  private long wpos, rpos;
+
+  /**
+   * First output position available as history
+   */
+  private long history;
+
+  private int     mode = HEADER;
+  private boolean last;
+  private int     stored;
+  private Huffman lit, dist;
+  private Huffman dynLit, dynDist, lenCode;
+  private int[]   lengths;
+
+  private BoundaryListener listener;
+
+  /**
+   * Decode from the start of the compressed data
+   */
+  public CheckpointInflater(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Decode from a block boundary.
+   *
+   * @param in     compressed data, from the byte holding bit
+   * @param bit    position of the block in the compressed data
+   * @param out    bytes decoded before the block
+   * @param window the bytes decoded before the block, up to 32KB
+   */
+  public CheckpointInflater(InputStream in,long bit,long out,byte[] window)
+    throws IOException {
+
+    this.in  = in;
+    consumed = bit >>> 3;
+    wpos = rpos = out;
+    history = out - window.length;
+    for(int i=0;i<window.length;i++)
+      ring[(int) (history + i) & RING_MASK] = window[i];
+
+    need((int) (bit & 7));
+    drop((int) (bit & 7));
+  }
+
+  /**
+   * Report block boundaries to a listener
+   */
+  public void setBoundaryListener(BoundaryListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Copy of the last bytes decoded, up to 32KB
+   */
+  public byte[] window() {
+    int n = (int) Math.min(WINDOW,wpos - history);
+    byte[] w = new byte[n];
+    for(int i=0;i<n;i++)
+      w[i] = ring[(int) (wpos - n + i) & RING_MASK];
+    return w;
+  }
+
+  /**
+   * Bytes decoded so far, counted from the start of the entry
+   */
+  public long getOutputPosition() {
+    return wpos;
+  }
+
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b,0,1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  public int read(byte[] b,int off,int len) throws IOException {
+    if(len == 0)
+      return 0;
+
+    if(rpos == wpos) {
+      if(mode == DONE)
+        return -1;
+      decode();
+      if(rpos == wpos)
+        return -1;
+    }
+
+    int n = (int) Math.min(len,wpos - rpos);
+    int p = (int) rpos & RING_MASK;
+    int first = Math.min(n,RING - p);
+    System.arraycopy(ring,p,b,off,first);
+    System.arraycopy(ring,0,b,off + first,n - first);
+    rpos += n;
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+
+    while(skipped < n) {
+      if(rpos == wpos) {
+        if(mode == DONE)
+          break;
+        decode();
+        if(rpos == wpos)
+          break;
+      }
+      long k = Math.min(n - skipped,wpos - rpos);
+      rpos += k;
+      skipped += k;
+    }
+
+    return skipped;
+  }
+
+  public int available() {
+    return (int) Math.min(wpos - rpos,Integer.MAX_VALUE);
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Decode until the ring is full or the stream ends
+   */
+  private void decode() throws IOException {
+    while(mode != DONE && RING - (wpos - rpos) >= MAX_MATCH) {
+      switch(mode) {
+        case HEADER:
+          if(last) {
+            mode = DONE;
+            break;
+          }
+          if(listener != null)
+            listener.boundary(this,(consumed + padding) * 8 - bitcnt,wpos);
+          header();
+          break;
+
+        case STORED:
+          copyStored();
+          break;
+
+        case CODES:
+          codes();
+          break;
+      }
+    }
+  }
+
+  private void header() throws IOException {
+    need(3);
+    last = (bitbuf & 1) != 0;
+    int type = (int) (bitbuf >>> 1) & 3;
+    drop(3);
+
+    switch(type) {
+      case 0:
+        drop(bitcnt & 7);
+        need(32);
+        stored = (int) bitbuf & 0xFFFF;
+        if(((bitbuf >>> 16) & 0xFFFF) != (~stored & 0xFFFF))
+          throw new ZipException("invalid stored block lengths");
+        drop(32);
+        mode = STORED;
+        break;
+
+      case 1:
+        lit  = FIXED_LIT;
+        dist = FIXED_DIST;
+        mode = CODES;
+        break;
+
+      case 2:
+        dynamic();
+        mode = CODES;
+        break;
+
+      default:
+        throw new ZipException("invalid block type");
+    }
+  }
+
+  private void dynamic() throws IOException {
+    if(dynLit == null) {
+      dynLit  = new Huffman(288);
+      dynDist = new Huffman(30);
+      lenCode = new Huffman(19);
+      lengths = new int[288 + 32];
+    }
+
+    need(14);
+    int nlen  = (int) (bitbuf & 31) + 257;
+    int ndist = (int) (bitbuf >>> 5 & 31) + 1;
+    int ncode = (int) (bitbuf >>> 10 & 15) + 4;
+    drop(14);
+    if(nlen > 286 || ndist > 30)
+      throw new ZipException("bad counts");
+
+    Arrays.fill(lengths,0,19,0);
+    for(int i=0;i<ncode;i++) {
+      need(3);
+      lengths[CLEN_ORDER[i]] = (int) bitbuf & 7;
+      drop(3);
+    }
+    lenCode.build(lengths,0,19);
+
+    int index = 0;
+    while(index < nlen + ndist) {
+      int sym = symbol(lenCode);
+      if(sym < 16) {
+        lengths[index++] = sym;
+        continue;
+      }
+
+      int len = 0, rep;
+      if(sym == 16) {
+        if(index == 0)
+          throw new ZipException("repeat with no first length");
+        len = lengths[index - 1];
+        rep = 3 + bits(2);
+      } else if(sym == 17) {
+        rep = 3 + bits(3);
+      } else {
+        rep = 11 + bits(7);
+      }
+      if(index + rep > nlen + ndist)
+        throw new ZipException("too many lengths");
+      while(rep-- > 0)
+        lengths[index++] = len;
+    }
+
+    if(lengths[256] == 0)
+      throw new ZipException("no end-of-block code");
+
+    dynLit.build(lengths,0,nlen);
+    dynDist.build(lengths,nlen,ndist);
+    lit  = dynLit;
+    dist = dynDist;
+  }
+
+  private void copyStored() throws IOException {
+    int n = (int) Math.min(stored,RING - (wpos - rpos));
+
+    for(int i=0;i<n;i++) {
+      int b;
+      if(bitcnt >= 8) {
+        b = (int) bitbuf & 0xff;
+        drop(8);
+      } else {
+        if(ipos == ilen && !fill())
+          throw new EOFException("Unexpected end of deflate data");
+        b = ibuf[ipos++] & 0xff;
+        consumed++;
+      }
+      ring[(int) wpos++ & RING_MASK] = (byte) b;
+    }
+
+    stored -= n;
+    if(stored == 0)
+      mode = HEADER;
+  }
+
+  private void codes() throws IOException {
+    while(RING - (wpos - rpos) >= MAX_MATCH) {
+      int sym = symbol(lit);
+
+      if(sym < 256) {
+        ring[(int) wpos++ & RING_MASK] = (byte) sym;
+        continue;
+      }
+      if(sym == 256) {
+        mode = HEADER;
+        return;
+      }
+
+      sym -= 257;
+      if(sym >= 29)
+        throw new ZipException("invalid literal/length code");
+      int len = LBASE[sym] + bits(LEXT[sym]);
+
+      int dsym = symbol(dist);
+      if(dsym >= 30)
+        throw new ZipException("invalid distance code");
+      int d = DBASE[dsym] + bits(DEXT[dsym]);
+      if(d > wpos - history)
+        throw new ZipException("invalid distance too far back");
+
+      long from = wpos - d;
+      while(len-- > 0)
+        ring[(int) wpos++ & RING_MASK] = ring[(int) from++ & RING_MASK];
+    }
+  }
+
+  /**
+   * Decode one symbol
+   */
+  private int symbol(Huffman h) throws IOException {
+    need(15);
+
+    int entry = h.fast[(int) bitbuf & ((1 << Huffman.FAST_BITS) - 1)];
+    if(entry != 0) {
+      drop(entry & 15);
+      return entry >>> 4;
+    }
+
+    // Longer code: canonical decode, one bit at a time
+    int code = 0, first = 0, index = 0;
+    for(int len=1;len<16;len++) {
+      code |= (int) (bitbuf >>> (len - 1)) & 1;
+      int count = h.count[len];
+      if(code - count < first) {
+        drop(len);
+        return h.symbol[index + (code - first)];
+      }
+      index += count;
+      first += count;
+      first <<= 1;
+      code  <<= 1;
+    }
+
+    throw new ZipException("invalid Huffman code");
+  }
+
+  private int bits(int n) throws IOException {
+    if(n == 0)
+      return 0;
+    need(n);
+    int v = (int) bitbuf & ((1 << n) - 1);
+    drop(n);
+    return v;
+  }
+
+  /**
+   * Make at least n bits available; past the end of the input zeros
+   * are added, which is an error only if they are used
+   */
+  private void need(int n) throws IOException {
+    while(bitcnt < n) {
+      int b;
+      if(ipos < ilen || fill()) {
+        b = ibuf[ipos++] & 0xff;
+        consumed++;
+      } else {
+        b = 0;
+        padding++;
+      }
+      bitbuf |= (long) b << bitcnt;
+      bitcnt += 8;
+    }
+  }
+
+  private void drop(int n) throws IOException {
+    bitbuf >>>= n;
+    bitcnt -= n;
+    if(padding > 0 && bitcnt < padding * 8)
+      throw new EOFException("Unexpected end of deflate data");
+  }
+
+  private boolean fill() throws IOException {
+    if(padding > 0)
+      return false;
+
+    int n = in.read(ibuf,0,ibuf.length);
+    if(n <= 0)
+      return false;
+
+    ipos = 0;
+    ilen = n;
+    return true;
+  }
+}
@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/**
+ * Thrown when writing to the client fails, usually because the
+ * client closed the connection before the transfer ended.
+ */
+public class ClientAbortException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public ClientAbortException(IOException cause) {
+    super(cause.getMessage());
+    initCause(cause);
+  }
+}
@@ -0,0 +1,427 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of decompressed entry contents, bounded by a byte budget.
+ * Contents admitted to the main area are kept in direct buffers, out
+ * of the garbage collected heap; entries still on the window keep the
+ * heap buffer they were put with, so those that are never admitted
+ * cost no off-heap memory.
+ * Eviction follows W-TinyLFU: new entries go to a small LRU window;
+ * entries leaving the window compete for a place on the main area
+ * (a segmented LRU) against its least recently used entry, and the
+ * one seen more often lately wins. Frequencies are estimated by a
+ * count-min sketch that is halved periodically, so one-off requests
+ * (crawlers, a scan of a whole archive) don't flush the hot pages.
+ */
+public class EntryCache implements EntryCacheMBean, Metrics.Source {
+  /**
+   * Identifies the contents of an entry: the archive identity changes
+   * whenever the archive file does, and the CRC tells apart entries
+   * rewritten with the same name.
+   */
+  public static final class Key {
+    final String identity;
+    final String name;
+    final long   crc;
+    final int    hash;
+
+    public Key(String identity,String name,long crc) {
+      this.identity = identity;
+      this.name     = name;
+      this.crc      = crc;
+      this.hash     = (identity.hashCode() * 31 + name.hashCode()) * 31 +
+                      (int) (crc ^ (crc >>> 32));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return crc == k.crc && name.equals(k.name) && identity.equals(k.identity);
+    }
+  }
+
+  /**
+   * Regions of the cache
+   */
+  static final int WINDOW    = 0;
+  static final int PROBATION = 1;
+  static final int PROTECTED = 2;
+
+  /**
+   * Share of the budget for the window, in percent
+   */
+  static final int WINDOW_PERCENT = 1;
+
+  /**
+   * Share of the main area for protected entries, in percent
+   */
+  static final int PROTECTED_PERCENT = 80;
+
+  /**
+   * A cached entry, linked on the LRU list of its region
+   */
+  static final class Node {
+    final Key        key;
+    ByteBuffer       data;
+    final int        weight;
+    int              region;
+    Node             prev, next;
+
+    Node(Key key,ByteBuffer data) {
+      this.key    = key;
+      this.data   = data;
+      this.weight = data.capacity();
+    }
+  }
+
+  /**
+   * LRU list of a region, least recently used first
+   */
+  static final class Region {
+    final Node head = new Node(null,ByteBuffer.allocate(0));
+    long       weight;
+
+    Region() {
+      head.prev = head.next = head;
+    }
+
+    Node first() {
+      return head.next != head ? head.next : null;
+    }
+
+    void addLast(Node n) {
+      n.prev = head.prev;
+      n.next = head;
+      head.prev.next = n;
+      head.prev = n;
+      weight += n.weight;
+    }
+
+    void remove(Node n) {
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+      n.prev = n.next = null;
+      weight -= n.weight;
+    }
+
+    void moveToLast(Node n) {
+      remove(n);
+      addLast(n);
+    }
+  }
+
+  /**
+   * Count-min sketch of 4-bit counters.
+   * Each key has a counter on four positions; its frequency is the
+   * smallest of them. All counters are halved after a number of
+   * increments proportional to the table size.
+   */
+  static final class FrequencySketch {
+    static final long[] SEEDS = {
+      0x97cb3127L, 0xb8d2a9c1L, 0xcf8e8b5dL, 0x8f7e1d43L
+    };
+
+    final long[] table;
+    final int    mask;
+    final int    sampleSize;
+    int          additions;
+
+    FrequencySketch(int capacity) {
+      int size = Integer.highestOneBit(Math.max(capacity,64) - 1) << 1;
+      table      = new long[size];
+      mask       = size * 16 - 1;
+      sampleSize = size * 10;
+    }
+
+    private int index(int hash,int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & mask;
+    }
+
+    int frequency(int hash) {
+      int f = 15;
+      for(int i=0;i<4;i++) {
+        int c = index(hash,i);
+        f = Math.min(f,(int) (table[c >>> 4] >>> ((c & 15) << 2)) & 15);
+      }
+      return f;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for(int i=0;i<4;i++) {
+        int c = index(hash,i);
+        int shift = (c & 15) << 2;
+        if(((table[c >>> 4] >>> shift) & 15) != 15) {
+          table[c >>> 4] += 1L << shift;
+          added = true;
+        }
+      }
+      if(added && ++additions == sampleSize)
+        reset();
+    }
+
+    private void reset() {
+      for(int i=0;i<table.length;i++)
+        table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+      additions /= 2;
+    }
+  }
+
+  /**
+   * Byte budget of the cache and of its regions
+   */
+  private final long maxSize;
+  private final long windowMax;
+  private final long protectedMax;
+
+  /**
+   * Largest entry accepted
+   */
+  private final int maxEntrySize;
+
+  private final HashMap<Key,Node> map = new HashMap<Key,Node>();
+  private final Region[] regions = { new Region(), new Region(), new Region() };
+  private final FrequencySketch sketch;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final LongAdder hits      = new LongAdder();
+  private final LongAdder misses    = new LongAdder();
+  private final LongAdder puts      = new LongAdder();
+  private final LongAdder rejects   = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Instantiate the cache
+   *
+   * @param maxSize      bytes of content kept at most
+   * @param maxEntrySize largest entry kept, in bytes
+   */
+  public EntryCache(long maxSize,int maxEntrySize) {
+    this.maxSize      = maxSize;
+    this.maxEntrySize = (int) Math.min(maxEntrySize,maxSize);
+    windowMax    = Math.max(maxSize * WINDOW_PERCENT / 100,1);
+    protectedMax = (maxSize - windowMax) * PROTECTED_PERCENT / 100;
+    sketch = new FrequencySketch((int) Math.min(maxSize / 4096,1 << 20));
+  }
+
+  /**
+   * True if an entry of this size may be cached
+   */
+  public boolean accepts(long size) {
+    return size >= 0 && size <= maxEntrySize;
+  }
+
+  /**
+   * Contents of an entry, or null if not cached.
+   * The returned buffer is a read-only view positioned at the start.
+   */
+  public ByteBuffer get(Key key) {
+    Node n;
+
+    lock.lock();
+    try {
+      sketch.increment(key.hash);
+      n = map.get(key);
+      if(n != null)
+        touch(n);
+    } finally {
+      lock.unlock();
+    }
+
+    if(n == null) {
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+    return n.data.asReadOnlyBuffer();
+  }
+
+  /**
+   * Cache the contents of an entry, from position to limit of data.
+   * The bytes are kept as they are until the entry is admitted past
+   * the window, and copied then: the caller must not change them.
+   * The cache may still decide not to keep them.
+   */
+  public void put(Key key,ByteBuffer data) {
+    if(!accepts(data.remaining()))
+      return;
+
+    lock.lock();
+    try {
+      if(map.containsKey(key))
+        return;
+
+      Node n = new Node(key,data.slice());
+      n.region = WINDOW;
+      regions[WINDOW].addLast(n);
+      map.put(key,n);
+      puts.increment();
+
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drop every entry
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      for(Region r : regions)
+        while(r.first() != null)
+          r.remove(r.first());
+      map.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record an access to a cached entry
+   */
+  private void touch(Node n) {
+    Region r = regions[n.region];
+
+    if(n.region == PROBATION) {
+      r.remove(n);
+      n.region = PROTECTED;
+      regions[PROTECTED].addLast(n);
+
+      // Demote the protected entries that no longer fit
+      Region p = regions[PROTECTED];
+      while(p.weight > protectedMax) {
+        Node d = p.first();
+        p.remove(d);
+        d.region = PROBATION;
+        regions[PROBATION].addLast(d);
+      }
+    } else {
+      r.moveToLast(n);
+    }
+  }
+
+  /**
+   * Move the entries that overflow the window to the main area,
+   * evicting whichever of candidate and victim is less frequent
+   */
+  private void evict() {
+    Region window = regions[WINDOW];
+    long   mainMax = maxSize - windowMax;
+
+    while(window.weight > windowMax) {
+      Node candidate = window.first();
+      window.remove(candidate);
+
+      int  frequency = sketch.frequency(candidate.key.hash);
+      boolean admit = true;
+
+      while(mainWeight() + candidate.weight > mainMax) {
+        Node victim = regions[PROBATION].first();
+        if(victim == null)
+          victim = regions[PROTECTED].first();
+
+        if(victim == null || sketch.frequency(victim.key.hash) >= frequency) {
+          admit = false;
+          break;
+        }
+
+        regions[victim.region].remove(victim);
+        map.remove(victim.key);
+        evictions.increment();
+      }
+
+      if(admit) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(candidate.weight);
+        copy.put(candidate.data.duplicate()).flip();
+        candidate.data   = copy;
+        candidate.region = PROBATION;
+        regions[PROBATION].addLast(candidate);
+      } else {
+        map.remove(candidate.key);
+        rejects.increment();
+      }
+    }
+  }
+
+  private long mainWeight() {
+    return regions[PROBATION].weight + regions[PROTECTED].weight;
+  }
+
+  public String[] getLabels() {
+    return new String[] { "cache", "entries" };
+  }
+
+  public void collect(Metrics.Collector c) {
+    c.gauge("cache_max_bytes","Byte budget of the cache",getMaxSize());
+    c.gauge("cache_bytes","Bytes of content cached",getSize());
+    c.gauge("cache_entries","Entries cached",getEntries());
+    c.counter("cache_hits_total","Requests served from the cache",getHits());
+    c.counter("cache_misses_total","Lookups not found on the cache",getMisses());
+    c.counter("cache_puts_total","Entries added to the cache",getPuts());
+    c.counter("cache_rejects_total","Entries not admitted past the window",
+              getRejects());
+    c.counter("cache_evictions_total","Entries evicted to admit others",
+              getEvictions());
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  public long getSize() {
+    lock.lock();
+    try {
+      return regions[WINDOW].weight + mainWeight();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getEntries() {
+    lock.lock();
+    try {
+      return map.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getPuts() {
+    return puts.sum();
+  }
+
+  public long getRejects() {
+    return rejects.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+}
@@ -0,0 +1,15 @@
+/**
+ * JMX view of the decompressed entry cache
+ */
+public interface EntryCacheMBean {
+  public long getMaxSize();
+  public int getMaxEntrySize();
+  public long getSize();
+  public int getEntries();
+  public long getHits();
+  public long getMisses();
+  public long getPuts();
+  public long getRejects();
+  public long getEvictions();
+  public void clear();
+}
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide budget of open archives.
+ * Each open ZipArchive holds a file descriptor and its central
+ * directory. Opening one more than the budget first closes the least
+ * recently used archive without readers, of any record; when every
+ * open archive is being read, the open waits for one to finish, up to
+ * a timeout.
+ */
+public class HandleBudget implements HandleBudgetMBean, Metrics.Source {
+  /**
+   * The budget of all the ZipRecords
+   */
+  static final HandleBudget GLOBAL = new HandleBudget();
+
+  /**
+   * Longest sleep of a waiting thread before it looks again for idle
+   * archives, in milliseconds: an idle archive is passed over while its
+   * record is busy opening, and that isn't announced
+   */
+  static final long RECHECK = 100;
+
+  /**
+   * Most archives open at once, 0 for no limit
+   */
+  private volatile int maxOpen = 0;
+
+  /**
+   * Longest wait for a free handle, in milliseconds
+   */
+  private volatile long waitTimeout = 0;
+
+  /**
+   * Archive files open, including retired ones still being read
+   */
+  private final AtomicInteger open = new AtomicInteger();
+  private volatile int peakOpen;
+
+  /**
+   * Records holding an open archive: the eviction candidates
+   */
+  private final Set<ZipRecord> records =
+    ConcurrentHashMap.<ZipRecord>newKeySet();
+
+  /**
+   * Threads waiting for a handle are woken on changes: a handle
+   * released or an archive left without readers
+   */
+  private final ReentrantLock lock    = new ReentrantLock();
+  private final Condition     changed = lock.newCondition();
+  private final AtomicLong    changes = new AtomicLong();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private final LongAdder acquires  = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder waits     = new LongAdder();
+  private final LongAdder timeouts  = new LongAdder();
+  private final LatencyHistogram waitTime = new LatencyHistogram();
+
+  /**
+   * Set the limits; lowering maxOpen doesn't close archives, later
+   * opens make room
+   */
+  public void configure(int maxOpen,long waitTimeout) {
+    this.maxOpen     = Math.max(0,maxOpen);
+    this.waitTimeout = Math.max(0,waitTimeout);
+  }
+
+  /**
+   * Take a handle for a new archive, closing an idle archive or
+   * waiting if the budget is spent.
+   *
+   * @return false if no handle was free within the wait timeout
+   */
+  boolean acquire() {
+    acquires.increment();
+    if(take())
+      return true;
+
+    long start    = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+    boolean waited = false;
+
+    // Counted before looking at the archives, so a reader finishing
+    // after the look either sees this waiter or is seen by the next one
+    waiters.incrementAndGet();
+    try {
+      for(;;) {
+        long seen = changes.get();
+
+        if(take())
+          return true;
+        if(evict())
+          continue;
+
+        long left = deadline - System.nanoTime();
+        if(left <= 0) {
+          timeouts.increment();
+          return false;
+        }
+        if(!waited) {
+          waits.increment();
+          waited = true;
+        }
+
+        lock.lock();
+        try {
+          if(changes.get() == seen)
+            changed.awaitNanos(Math.min(left,
+                                        TimeUnit.MILLISECONDS.toNanos(RECHECK)));
+        } finally {
+          lock.unlock();
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      timeouts.increment();
+      return false;
+    } finally {
+      waiters.decrementAndGet();
+      if(waited)
+        waitTime.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Take a handle if the budget allows it
+   */
+  private boolean take() {
+    for(;;) {
+      int n = open.get();
+      int max = maxOpen;
+
+      if(max > 0 && n >= max)
+        return false;
+      if(open.compareAndSet(n,n + 1)) {
+        if(n + 1 > peakOpen)
+          peakOpen = n + 1;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back the handle of a closed archive, or of a failed open
+   */
+  void release() {
+    open.decrementAndGet();
+    changed();
+  }
+
+  /**
+   * The last reader of an open archive finished
+   */
+  void idle() {
+    changed();
+  }
+
+  private void changed() {
+    if(waiters.get() == 0)
+      return;
+
+    changes.incrementAndGet();
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A record opened its archive
+   */
+  void opened(ZipRecord record) {
+    records.add(record);
+  }
+
+  /**
+   * A record dropped its archive
+   */
+  void closed(ZipRecord record) {
+    records.remove(record);
+  }
+
+  /**
+   * Close the least recently used archive that has no reader.
+   * Requests hold their archive retained, so only archives nobody is
+   * using are closed.
+   *
+   * @return true if one was closed
+   */
+  private boolean evict() {
+    List<ZipRecord> idle = new ArrayList<ZipRecord>();
+
+    for(ZipRecord zr : records)
+      if(zr.isIdle())
+        idle.add(zr);
+
+    Collections.sort(idle,new Comparator<ZipRecord>() {
+      public int compare(ZipRecord a,ZipRecord b) {
+        return Long.compare(a.getLastAccess(),b.getLastAccess());
+      }
+    });
+
+    for(ZipRecord zr : idle) {
+      if(zr.evict()) {
+        evictions.increment();
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public String[] getLabels() {
+    return new String[] { "budget", "archives" };
+  }
+
+  public void collect(Metrics.Collector c) {
+    c.gauge("handles_max","Most archives open at once, 0 for no limit",
+            getMaxOpen());
+    c.gauge("handles_open","Archive files open",getOpen());
+    c.gauge("handles_peak","Most archive files open at once",getPeakOpen());
+    c.counter("handles_acquires_total","Archive opens that took a handle",
+              getAcquires());
+    c.counter("handles_evictions_total","Idle archives closed to make room",
+              getEvictions());
+    c.counter("handles_waits_total","Opens that waited for a handle",
+              getWaits());
+    c.counter("handles_timeouts_total","Opens that found no handle in time",
+              getTimeouts());
+    c.histogram("handles_wait","Time waiting for a handle",waitTime);
+  }
+
+  public int getMaxOpen() {
+    return maxOpen;
+  }
+
+  public long getWaitTimeout() {
+    return waitTimeout;
+  }
+
+  public int getOpen() {
+    return open.get();
+  }
+
+  public int getPeakOpen() {
+    return peakOpen;
+  }
+
+  public long getAcquires() {
+    return acquires.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getWaits() {
+    return waits.sum();
+  }
+
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  public long getWaitTimeP99Micros() {
+    return waitTime.quantile(0.99) / 1000;
+  }
+}
@@ -0,0 +1,14 @@
+/**
+ * JMX view of the budget of open archives
+ */
+public interface HandleBudgetMBean {
+  public int getMaxOpen();
+  public long getWaitTimeout();
+  public int getOpen();
+  public int getPeakOpen();
+  public long getAcquires();
+  public long getEvictions();
+  public long getWaits();
+  public long getTimeouts();
+  public long getWaitTimeP99Micros();
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Renders binary data as HTML hex/ascii rows of 16 bytes.
+ * Each byte is expanded through lookup tables of its hex pair and of
+ * its HTML-escaped character, into a pooled buffer that is written
+ * out a page at a time.
+ */
+public class HexRenderer {
+  /**
+   * Bytes per row
+   */
+  static final int ROW = 16;
+
+  static final byte[] HEX_DIGITS = {
+    '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
+  };
+
+  static final byte[] EOL     = ascii("<br>\r\n");
+  static final byte[] PADDING = ascii("&nbsp;&nbsp;&nbsp;");
+
+  /**
+   * "XX " of each byte value
+   */
+  private static final byte[] HEX = new byte[256 * 3];
+
+  static {
+    for(int b=0;b<256;b++) {
+      HEX[b * 3]     = HEX_DIGITS[b >> 4];
+      HEX[b * 3 + 1] = HEX_DIGITS[b & 0xf];
+      HEX[b * 3 + 2] = ' ';
+    }
+  }
+
+  /**
+   * HTML shown for each byte value on the ascii column
+   */
+  private final byte[][] chars = new byte[256][];
+
+  /**
+   * Longest output of one row
+   */
+  private final int rowSize;
+
+  /**
+   * Instantiate a renderer
+   *
+   * @param controlChar HTML shown for the chars below 32
+   */
+  public HexRenderer(String controlChar) {
+    int longest = 0;
+
+    for(int b=0;b<256;b++) {
+      if(b < 32)
+        chars[b] = ascii(controlChar);
+      else if(b == 32)
+        chars[b] = ascii("&nbsp;");
+      else
+        chars[b] = ascii("&#" + b + ";");
+      longest = Math.max(longest,chars[b].length);
+    }
+
+    rowSize = ROW * Math.max(3 + longest,PADDING.length) + EOL.length;
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] b = new byte[s.length()];
+    for(int i=0;i<b.length;i++)
+      b[i] = (byte) s.charAt(i);
+    return b;
+  }
+
+  /**
+   * Renders up to length bytes of in, or until its end.
+   *
+   * @return number of bytes rendered
+   * @throws ClientAbortException if writing to out fails
+   */
+  public long render(InputStream in,
+                     OutputStream out,
+                     long length,
+                     BufferPool buffers)
+    throws IOException {
+
+    ResourcePool.Handle ih = buffers.getBuffer(length);
+    ResourcePool.Handle oh = buffers.getBuffer(-1);
+    long total = 0;
+
+    try {
+      ByteBuffer ibuf = (ByteBuffer) ih.get();
+      ByteBuffer obuf = (ByteBuffer) oh.get();
+      byte[] src  = ibuf.array();
+      int    soff = ibuf.arrayOffset();
+      // Whole rows only, so a row never spans two reads
+      int    slen = ibuf.capacity() / ROW * ROW;
+      byte[] dst  = obuf.array();
+      int    doff = obuf.arrayOffset();
+      int    dend = doff + obuf.capacity() - rowSize;
+
+      while(total < length) {
+        int want = (int) Math.min(slen,length - total);
+        int n = 0, r;
+
+        while(n < want && (r = in.read(src,soff + n,want - n)) != -1)
+          n += r;
+        if(n == 0)
+          break;
+
+        int d = doff;
+        for(int row=0;row<n;row+=ROW) {
+          if(d > dend) {
+            write(out,dst,doff,d - doff);
+            d = doff;
+          }
+          d = renderRow(src,soff + row,Math.min(ROW,n - row),dst,d);
+        }
+        write(out,dst,doff,d - doff);
+
+        total += n;
+        if(n < want)
+          break;
+      }
+    } finally {
+      buffers.release(oh);
+      buffers.release(ih);
+    }
+
+    return total;
+  }
+
+  /**
+   * Expands one row of up to 16 bytes into dst at d.
+   * Returns the position after the row.
+   */
+  private int renderRow(byte[] src,int s,int n,byte[] dst,int d) {
+    for(int i=0;i<n;i++) {
+      int h = (src[s + i] & 0xff) * 3;
+      dst[d]     = HEX[h];
+      dst[d + 1] = HEX[h + 1];
+      dst[d + 2] = HEX[h + 2];
+      d += 3;
+    }
+
+    for(int i=n;i<ROW;i++) {
+      System.arraycopy(PADDING,0,dst,d,PADDING.length);
+      d += PADDING.length;
+    }
+
+    for(int i=0;i<n;i++) {
+      byte[] c = chars[src[s + i] & 0xff];
+      System.arraycopy(c,0,dst,d,c.length);
+      d += c.length;
+    }
+
+    System.arraycopy(EOL,0,dst,d,EOL.length);
+    return d + EOL.length;
+  }
+
+  private static void write(OutputStream out,byte[] b,int off,int len)
+    throws IOException {
+
+    try {
+      out.write(b,off,len);
+    } catch(IOException e) {
+      throw new ClientAbortException(e);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Checkpoints of a DEFLATED entry, for reading it from any offset.
+ * Each checkpoint records where a deflate block starts, in bits of
+ * compressed data and in bytes of output, and the 32KB window that
+ * precedes it. A read at offset X decodes from the last checkpoint
+ * before X, instead of from the start of the entry.
+ * Windows are kept deflated; indexes may also be saved to a
+ * directory, so they survive restarts.
+ */
+public class InflateIndex {
+  private static Logger logger =
+      Logger.getLogger(InflateIndex.class.getName());
+
+  /**
+   * Entries smaller than this are inflated from the start
+   */
+  static final long MIN_SIZE = 4L * 1024 * 1024;
+
+  /**
+   * Output between checkpoints
+   */
+  static final long SPACING = 1024 * 1024;
+
+  /**
+   * Most checkpoints of an entry; larger entries get a larger spacing
+   */
+  static final int MAX_CHECKPOINTS = 1024;
+
+  static final int MAGIC   = 0x5a564958; // "ZVIX"
+  static final int VERSION = 1;
+
+  /**
+   * One place to start decoding
+   */
+  static final class Checkpoint {
+    final long   out;
+    final long   bit;
+    final byte[] window;
+    final int    windowLength;
+
+    Checkpoint(long out,long bit,byte[] window,int windowLength) {
+      this.out          = out;
+      this.bit          = bit;
+      this.window       = window;
+      this.windowLength = windowLength;
+    }
+  }
+
+  /**
+   * Where indexes are saved, or null
+   */
+  private static volatile File directory;
+
+  /**
+   * Builds indexes in the background, one at a time; started on first use
+   */
+  private static ExecutorService builder;
+
+  private final long         size;
+  private final long         crc;
+  private final Checkpoint[] checkpoints;
+
+  InflateIndex(long size,long crc,List<Checkpoint> checkpoints) {
+    this.size        = size;
+    this.crc         = crc;
+    this.checkpoints = checkpoints.toArray(new Checkpoint[checkpoints.size()]);
+  }
+
+  /**
+   * Save indexes to a directory, null to keep them in memory only
+   */
+  public static void setDirectory(File dir) {
+    directory = dir;
+  }
+
+  /**
+   * True if random access to an entry is worth an index
+   */
+  public static boolean indexable(ArchiveEntry entry) {
+    return entry.getMethod() == ArchiveEntry.DEFLATED &&
+      !entry.isEncrypted() && entry.getSize() >= MIN_SIZE;
+  }
+
+  /**
+   * Run a build in the background
+   */
+  static synchronized void schedule(Runnable build) {
+    if(builder == null)
+      builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r,"InflateIndex builder");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    builder.execute(build);
+  }
+
+  /**
+   * Stop the builder, abandoning the builds not finished
+   */
+  public static synchronized void shutdown() {
+    if(builder != null) {
+      builder.shutdownNow();
+      builder = null;
+    }
+  }
+
+  /**
+   * Number of checkpoints
+   */
+  public int size() {
+    return checkpoints.length;
+  }
+
+  /**
+   * The last checkpoint at or before an output offset
+   */
+  Checkpoint find(long offset) {
+    int lo = 0, hi = checkpoints.length - 1;
+
+    while(lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if(checkpoints[mid].out <= offset)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+
+    return checkpoints[lo];
+  }
+
+  /**
+   * Inflated window of a checkpoint
+   */
+  static byte[] window(Checkpoint c) throws IOException {
+    byte[] w = new byte[c.windowLength];
+
+    if(w.length == 0)
+      return w;
+
+    Inflater inf = new Inflater();
+    try {
+      inf.setInput(c.window);
+      int n = 0;
+      while(n < w.length && !inf.finished()) {
+        int k = inf.inflate(w,n,w.length - n);
+        if(k == 0 && (inf.needsInput() || inf.needsDictionary()))
+          break;
+        n += k;
+      }
+      if(n != w.length)
+        throw new IOException("corrupt checkpoint window");
+    } catch(DataFormatException e) {
+      throw new IOException("corrupt checkpoint window",e);
+    } finally {
+      inf.end();
+    }
+
+    return w;
+  }
+
+  /**
+   * Build the index of an entry by decoding all of it.
+   *
+   * @param data the compressed data of the entry, from its start
+   */
+  static InflateIndex build(InputStream data,ArchiveEntry entry)
+    throws IOException {
+
+    final long spacing = Math.max(SPACING,entry.getSize() / MAX_CHECKPOINTS);
+    final List<Checkpoint> list = new ArrayList<Checkpoint>();
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    list.add(new Checkpoint(0,0,new byte[0],0));
+
+    CheckpointInflater inf = new CheckpointInflater(data);
+    try {
+      inf.setBoundaryListener(new CheckpointInflater.BoundaryListener() {
+        public void boundary(CheckpointInflater inflater,long bit,long out) {
+          if(out - list.get(list.size() - 1).out < spacing)
+            return;
+
+          byte[] w = inflater.window();
+          list.add(new Checkpoint(out,bit,deflate(deflater,w),w.length));
+        }
+      });
+
+      long total = inf.skip(Long.MAX_VALUE);
+      if(total != entry.getSize())
+        throw new IOException("entry size mismatch: " + entry.getName());
+    } finally {
+      deflater.end();
+      inf.close();
+    }
+
+    return new InflateIndex(entry.getSize(),entry.getCrc(),list);
+  }
+
+  private static byte[] deflate(Deflater deflater,byte[] b) {
+    deflater.reset();
+    deflater.setInput(b);
+    deflater.finish();
+
+    byte[] out = new byte[b.length + 64];
+    int    n   = 0;
+    while(!deflater.finished()) {
+      if(n == out.length)
+        out = Arrays.copyOf(out,out.length * 2);
+      n += deflater.deflate(out,n,out.length - n);
+    }
+
+    return Arrays.copyOf(out,n);
+  }
+
+  /**
+   * File of the saved index of an entry, or null if indexes aren't
+   * saved
+   */
+  static File file(String identity,ArchiveEntry entry) {
+    File dir = directory;
+
+    if(dir == null)
+      return null;
+
+    return new File(dir,identity + "-" +
+                    Integer.toHexString(entry.getName().hashCode()) + "-" +
+                    Long.toHexString(entry.getCrc()) + ".idx");
+  }
+
+  /**
+   * Load the saved index of an entry, or null if there is none or it
+   * doesn't match the entry
+   */
+  static InflateIndex load(File f,ArchiveEntry entry) {
+    if(f == null || !f.isFile())
+      return null;
+
+    try {
+      DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      try {
+        if(in.readInt() != MAGIC || in.readInt() != VERSION)
+          return null;
+
+        long size = in.readLong();
+        long crc  = in.readLong();
+        if(size != entry.getSize() || crc != entry.getCrc())
+          return null;
+
+        int n = in.readInt();
+        List<Checkpoint> list = new ArrayList<Checkpoint>(n);
+        for(int i=0;i<n;i++) {
+          long   out = in.readLong();
+          long   bit = in.readLong();
+          int    wl  = in.readInt();
+          byte[] w   = new byte[in.readInt()];
+          in.readFully(w);
+          list.add(new Checkpoint(out,bit,w,wl));
+        }
+
+        return n > 0 ? new InflateIndex(size,crc,list) : null;
+      } finally {
+        in.close();
+      }
+    } catch(IOException e) {
+      logger.warning("Can't read " + f + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Save the index, replacing the file at once
+   */
+  void save(File f) {
+    if(f == null)
+      return;
+
+    File tmp = new File(f.getPath() + ".tmp");
+    try {
+      DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(size);
+        out.writeLong(crc);
+        out.writeInt(checkpoints.length);
+        for(Checkpoint c : checkpoints) {
+          out.writeLong(c.out);
+          out.writeLong(c.bit);
+          out.writeInt(c.windowLength);
+          out.writeInt(c.window.length);
+          out.write(c.window);
+        }
+      } finally {
+        out.close();
+      }
+
+      if(!tmp.renameTo(f))
+        throw new IOException("can't rename " + tmp);
+    } catch(IOException e) {
+      logger.warning("Can't save " + f + ": " + e);
+      tmp.delete();
+    }
+  }
+}
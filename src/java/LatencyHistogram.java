@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in power of two buckets, from 1us to about
+ * one minute. Recording is lock-free.
+ */
+public class LatencyHistogram {
+  /**
+   * The first bucket holds durations up to 2^MIN_SHIFT ns (~1us)
+   */
+  static final int MIN_SHIFT = 10;
+
+  /**
+   * Number of buckets; the last one also holds anything longer
+   */
+  static final int BUCKETS = 27;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum   = new LongAdder();
+
+  /**
+   * Upper bound, in nanoseconds, of a bucket
+   */
+  public static long bucketBound(int bucket) {
+    return 1L << (bucket + MIN_SHIFT);
+  }
+
+  /**
+   * Record one duration
+   */
+  public void record(long nanos) {
+    if(nanos < 0)
+      nanos = 0;
+
+    int bucket = nanos <= 1 ? 0 :
+      64 - Long.numberOfLeadingZeros(nanos - 1) - MIN_SHIFT;
+    if(bucket < 0)
+      bucket = 0;
+    else if(bucket >= BUCKETS)
+      bucket = BUCKETS - 1;
+
+    counts.incrementAndGet(bucket);
+    count.increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * Number of recorded durations
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Sum of the recorded durations, in nanoseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Number of durations recorded in a bucket
+   */
+  public long getBucketCount(int bucket) {
+    return counts.get(bucket);
+  }
+
+  /**
+   * Approximate quantile (0..1), in nanoseconds: the upper bound of the
+   * bucket holding it. Returns 0 when empty.
+   */
+  public long quantile(double q) {
+    long total = 0;
+    for(int i=0;i<BUCKETS;i++)
+      total += counts.get(i);
+
+    if(total == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for(int i=0;i<BUCKETS;i++) {
+      seen += counts.get(i);
+      if(seen >= rank)
+        return bucketBound(i);
+    }
+
+    return bucketBound(BUCKETS - 1);
+  }
+}
@@ -0,0 +1,245 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics published by the servlet, through JMX and rendered as JSON
+ * or in the Prometheus text format.
+ */
+public class Metrics {
+  private static Logger logger = Logger.getLogger(Metrics.class.getName());
+
+  /**
+   * JMX domain of the servlet MBeans
+   */
+  static final String DOMAIN = "ZipViewServlet";
+
+  /**
+   * Prefix of the Prometheus metric names
+   */
+  static final String PREFIX = "zipview_";
+
+  /**
+   * Something that reports metrics
+   */
+  public interface Source {
+    /**
+     * Label name and value identifying the source
+     */
+    String[] getLabels();
+
+    /**
+     * Report the current values
+     */
+    void collect(Collector c);
+  }
+
+  /**
+   * Receives the values reported by a source
+   */
+  public interface Collector {
+    void counter(String name,String help,long value);
+    void gauge(String name,String help,long value);
+    void histogram(String name,String help,LatencyHistogram h);
+  }
+
+  /**
+   * Register an MBean, replacing any previous one with the same name
+   */
+  public static void register(String type,String name,Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = objectName(type,name);
+      if(server.isRegistered(on))
+        server.unregisterMBean(on);
+      server.registerMBean(mbean,on);
+    } catch(Exception e) {
+      logger.warning("Can't register MBean " + type + "/" + name + ": " + e);
+    }
+  }
+
+  /**
+   * Unregister an MBean, if registered
+   */
+  public static void unregister(String type,String name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = objectName(type,name);
+      if(server.isRegistered(on))
+        server.unregisterMBean(on);
+    } catch(Exception e) {
+      logger.warning("Can't unregister MBean " + type + "/" + name + ": " + e);
+    }
+  }
+
+  private static ObjectName objectName(String type,String name)
+    throws Exception {
+
+    return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+  }
+
+  /**
+   * Nanoseconds to seconds
+   */
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private static void jsonString(StringBuilder sb,String s) {
+    sb.append('"');
+    for(int i=0;i<s.length();i++) {
+      char c = s.charAt(i);
+      if(c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if(c < 32)
+        sb.append(String.format("\\u%04x",(int) c));
+      else
+        sb.append(c);
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Render sources as a JSON array, one object per source holding its
+   * labels and values. Histograms become objects with count, sum and
+   * quantiles in seconds.
+   */
+  public static String toJson(List<? extends Source> sources) {
+    final StringBuilder sb = new StringBuilder();
+
+    sb.append("[");
+    for(int i=0;i<sources.size();i++) {
+      Source s = sources.get(i);
+      String[] labels = s.getLabels();
+
+      sb.append(i == 0 ? "\n  {" : ",\n  {");
+      for(int j=0;j<labels.length;j+=2) {
+        if(j > 0)
+          sb.append(", ");
+        jsonString(sb,labels[j]);
+        sb.append(": ");
+        jsonString(sb,labels[j + 1]);
+      }
+
+      s.collect(new Collector() {
+        public void counter(String name,String help,long value) {
+          sb.append(", \"").append(name).append("\": ").append(value);
+        }
+
+        public void gauge(String name,String help,long value) {
+          sb.append(", \"").append(name).append("\": ").append(value);
+        }
+
+        public void histogram(String name,String help,LatencyHistogram h) {
+          sb.append(", \"").append(name).append("_seconds\": {")
+            .append("\"count\": ").append(h.getCount())
+            .append(", \"sum\": ").append(seconds(h.getSum()))
+            .append(", \"p50\": ").append(seconds(h.quantile(0.5)))
+            .append(", \"p90\": ").append(seconds(h.quantile(0.9)))
+            .append(", \"p99\": ").append(seconds(h.quantile(0.99)))
+            .append("}");
+        }
+      });
+      sb.append("}");
+    }
+
+    return sb.append("\n]\n").toString();
+  }
+
+  /**
+   * One metric family of the Prometheus output
+   */
+  private static class Family {
+    String type;
+    String help;
+    StringBuilder samples = new StringBuilder();
+  }
+
+  private static String promLabels(String[] labels,String extra) {
+    StringBuilder sb = new StringBuilder("{");
+
+    for(int j=0;j<labels.length;j+=2) {
+      if(j > 0)
+        sb.append(',');
+      sb.append(labels[j]).append("=\"")
+        .append(labels[j + 1].replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n"))
+        .append('"');
+    }
+    if(extra != null) {
+      if(labels.length > 0)
+        sb.append(',');
+      sb.append(extra);
+    }
+
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Render sources in the Prometheus text exposition format
+   */
+  public static String toPrometheus(List<? extends Source> sources) {
+    final Map<String,Family> families = new LinkedHashMap<String,Family>();
+
+    for(Source s : sources) {
+      final String[] labels = s.getLabels();
+
+      s.collect(new Collector() {
+        private Family family(String name,String type,String help) {
+          Family f = families.get(name);
+          if(f == null) {
+            f = new Family();
+            f.type = type;
+            f.help = help;
+            families.put(name,f);
+          }
+          return f;
+        }
+
+        public void counter(String name,String help,long value) {
+          String n = PREFIX + name;
+          family(n,"counter",help).samples.append(n).append(promLabels(labels,null))
+            .append(' ').append(value).append('\n');
+        }
+
+        public void gauge(String name,String help,long value) {
+          String n = PREFIX + name;
+          family(n,"gauge",help).samples.append(n).append(promLabels(labels,null))
+            .append(' ').append(value).append('\n');
+        }
+
+        public void histogram(String name,String help,LatencyHistogram h) {
+          String n = PREFIX + name + "_seconds";
+          StringBuilder sb = family(n,"histogram",help).samples;
+          long cumulative = 0;
+
+          for(int i=0;i<LatencyHistogram.BUCKETS - 1;i++) {
+            cumulative += h.getBucketCount(i);
+            sb.append(n).append("_bucket")
+              .append(promLabels(labels,"le=\"" + seconds(LatencyHistogram.bucketBound(i)) + "\""))
+              .append(' ').append(cumulative).append('\n');
+          }
+          sb.append(n).append("_bucket").append(promLabels(labels,"le=\"+Inf\""))
+            .append(' ').append(h.getCount()).append('\n');
+          sb.append(n).append("_sum").append(promLabels(labels,null))
+            .append(' ').append(seconds(h.getSum())).append('\n');
+          sb.append(n).append("_count").append(promLabels(labels,null))
+            .append(' ').append(h.getCount()).append('\n');
+        }
+      });
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for(Map.Entry<String,Family> e : families.entrySet()) {
+      Family f = e.getValue();
+      sb.append("# HELP ").append(e.getKey()).append(' ').append(f.help).append('\n');
+      sb.append("# TYPE ").append(e.getKey()).append(' ').append(f.type).append('\n');
+      sb.append(f.samples);
+    }
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/**
+ * Thrown when an archive can't be opened because the budget of open
+ * archives is spent and no handle became free in time.
+ */
+public class NoHandleException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public NoHandleException(String file) {
+    super("No handle free to open " + file);
+  }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel view of the servlet output stream.
+ * Heap buffers are written straight from their backing array; other
+ * buffers (direct or mapped) are copied through a pooled buffer.
+ */
+public class OutputStreamChannel implements WritableByteChannel {
+  private OutputStream out;
+  private BufferPool   buffers;
+  private boolean      open = true;
+
+  public OutputStreamChannel(OutputStream out,BufferPool buffers) {
+    this.out     = out;
+    this.buffers = buffers;
+  }
+
+  /**
+   * Writes the remaining bytes of src.
+   *
+   * @throws ClientAbortException if writing to the stream fails
+   */
+  public int write(ByteBuffer src) throws IOException {
+    int n = src.remaining();
+
+    try {
+      if(src.hasArray()) {
+        out.write(src.array(),src.arrayOffset() + src.position(),n);
+        src.position(src.limit());
+        return n;
+      }
+
+      ResourcePool.Handle h = buffers.getBuffer(n);
+      ByteBuffer buffer = (ByteBuffer) h.get();
+      try {
+        byte[] b = buffer.array();
+        int    offset = buffer.arrayOffset();
+        while(src.hasRemaining()) {
+          int len = Math.min(src.remaining(),buffer.capacity());
+          src.get(b,offset,len);
+          out.write(b,offset,len);
+        }
+      } finally {
+        buffers.release(h);
+      }
+    } catch(IOException e) {
+      throw new ClientAbortException(e);
+    }
+
+    return n;
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Marks the channel closed; the stream stays open.
+   */
+  public void close() {
+    open = false;
+  }
+}
@@ -0,0 +1,120 @@
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rendered HTML of the generated pages (zip list, sidebar, entire zip
+ * listing), so they are sent as byte copies.
+ * Pages are found by a key made of everything they depend on: the
+ * page variant (browse mode, servlet URL, ...) and a stamp of the
+ * repository or archive state, so a change gives new keys and stale
+ * pages are never found again. The cache is cleared on reload, and
+ * past MAX_PAGES the least recently used page goes. Keys are made
+ * from server-side data only, so clients can't add pages at will.
+ */
+public class PageCache {
+  /**
+   * Most pages kept
+   */
+  static final int MAX_PAGES = 256;
+
+  /**
+   * A rendered page
+   */
+  public static final class Page {
+    /**
+     * The HTML, in UTF-8
+     */
+    final byte[] body;
+
+    /**
+     * Weak entity tag, unique to this rendering
+     */
+    final String etag;
+
+    Page(byte[] body,String etag) {
+      this.body = body;
+      this.etag = etag;
+    }
+  }
+
+  /**
+   * Pages in access order, least recently used first
+   */
+  private final LinkedHashMap<String,Page> pages =
+    new LinkedHashMap<String,Page>(16,0.75f,true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<String,Page> eldest) {
+        return size() > MAX_PAGES;
+      }
+    };
+
+  /**
+   * Guards pages, which a lookup reorders.
+   * A lock rather than a monitor, so waiting threads don't pin the
+   * carrier of a virtual thread.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Tells apart the renderings of this instance...
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * ...and those of other instances
+   */
+  private final String prefix = Long.toHexString(System.currentTimeMillis());
+
+  /**
+   * The page of a key, or null if not rendered
+   */
+  public Page get(String key) {
+    lock.lock();
+    try {
+      return pages.get(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Keep the HTML of a page
+   */
+  public Page put(String key,CharSequence html) {
+    byte[] body;
+
+    try {
+      body = html.toString().getBytes("UTF-8");
+    } catch(UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+
+    Page page = new Page(body,"W/\"" + prefix + "-" +
+                         Long.toHexString(sequence.incrementAndGet()) + "\"");
+
+    lock.lock();
+    try {
+      pages.put(key,page);
+    } finally {
+      lock.unlock();
+    }
+
+    return page;
+  }
+
+  /**
+   * Forget every page
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      pages.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Test that the request path doesn't pin virtual threads.
+ * Runs concurrent reads of a zip on virtual threads (opening the
+ * archive under a spent handle budget, the inflater and buffer pools,
+ * transfers of stored entries, the entry cache and a contended
+ * resource pool) while recording jdk.VirtualThreadPinned events, and
+ * fails if any is recorded.
+ * Needs Java 21 to run; it is built like the rest of the sources.
+ *
+ * Usage: java PinningTest [zipfile] [tasks]
+ */
+public class PinningTest {
+  public static void main(String[] args) throws Exception {
+    ExecutorService executor;
+
+    try {
+      executor = (ExecutorService) Executors.class.
+        getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch(NoSuchMethodException e) {
+      System.out.println("Virtual threads need Java 21, skipped");
+      return;
+    }
+
+    File zip;
+    if(args.length > 0) {
+      zip = new File(args[0]);
+    } else {
+      zip = File.createTempFile("pinning",".zip");
+      zip.deleteOnExit();
+      writeZip(zip);
+    }
+    int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+    // More records than open handles, so opening one waits for
+    // another to be closed
+    final ZipRecord[] records = new ZipRecord[4];
+    for(int i=0;i<records.length;i++) {
+      records[i] = new ZipRecord();
+      records[i].virtualDir = "pinning" + i;
+      records[i].file       = zip.getPath();
+    }
+    HandleBudget.GLOBAL.configure(2,60000);
+
+    final BufferPool   buffers = new BufferPool();
+    final EntryCache   cache   = new EntryCache(4L * 1024 * 1024,256 * 1024);
+    final ResourcePool scarce  = new ResourcePool(4,new ResourceCreator() {
+      public Object createResource() {
+        return new Object();
+      }
+
+      public void destroyResource(Object resource) {
+      }
+    });
+    final AtomicLong bytes    = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    Recording recording = new Recording();
+    recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).
+      withStackTrace();
+    recording.start();
+
+    long start = System.nanoTime();
+    for(int i=0;i<tasks;i++) {
+      final int task = i;
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            // Most requests go to one archive, kept open
+            ZipRecord record = task % 4 != 3 ? records[0] :
+              records[1 + (task / 4) % (records.length - 1)];
+            bytes.addAndGet(read(record,buffers,cache,scarce,task));
+          } catch(Exception e) {
+            failures.incrementAndGet();
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10,TimeUnit.MINUTES);
+    long elapsed = System.nanoTime() - start;
+
+    recording.stop();
+    File dump = File.createTempFile("pinning",".jfr");
+    dump.deleteOnExit();
+    recording.dump(dump.toPath());
+    recording.close();
+
+    List<RecordedEvent> pinned = RecordingFile.readAllEvents(dump.toPath());
+    for(RecordedEvent e : pinned)
+      System.out.println(e);
+
+    for(int i=0;i<records.length;i++)
+      records[i].remove();
+
+    System.out.println(tasks + " tasks, " + bytes.get() + " bytes in " +
+                       elapsed / 1000000 + "ms, " +
+                       HandleBudget.GLOBAL.getWaits() + " budget waits, " +
+                       failures.get() + " failures, " +
+                       pinned.size() + " pinned");
+
+    if(failures.get() != 0 || !pinned.isEmpty())
+      System.exit(1);
+  }
+
+  /**
+   * Takes what a stored entry is sent to
+   */
+  static final WritableByteChannel DISCARD = new WritableByteChannel() {
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      src.position(src.limit());
+      return n;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  };
+
+  /**
+   * What a request does: find the archive, read an entry (whole or
+   * from an offset) through a pooled buffer or send it raw if stored,
+   * cache it
+   */
+  static long read(ZipRecord record,BufferPool buffers,EntryCache cache,
+                   ResourcePool scarce,int task)
+    throws IOException, InterruptedException {
+
+    ZipArchive archive = record.openArchive();
+    if(archive == null)
+      throw new IOException("Can't open " + record.file);
+
+    try {
+      return read(archive,buffers,cache,scarce,task);
+    } finally {
+      archive.release();
+    }
+  }
+
+  static long read(ZipArchive archive,BufferPool buffers,EntryCache cache,
+                   ResourcePool scarce,int task)
+    throws IOException, InterruptedException {
+
+    List<ArchiveEntry> entries = Collections.list(archive.entries());
+    ArchiveEntry entry = entries.get(task % entries.size());
+    if(entry.isDirectory())
+      return 0;
+
+    ResourcePool.Handle token = scarce.getResource();
+    try {
+      EntryCache.Key key =
+        new EntryCache.Key(archive.getIdentity(),entry.getName(),entry.getCrc());
+      ByteBuffer cached = cache.get(key);
+      if(cached != null)
+        return cached.remaining();
+
+      if(entry.isStored() && (task & 2) != 0)
+        return archive.transferTo(entry,0,entry.getCompressedSize(),DISCARD);
+
+      long offset = (task & 1) == 0 ? 0 : entry.getSize() / 2;
+      ResourcePool.Handle h = buffers.getBuffer(entry.getSize());
+      ByteBuffer buffer = (ByteBuffer) h.get();
+      InputStream in = archive.getInputStream(entry,offset);
+      long n = 0;
+      try {
+        int k;
+        while((k = in.read(buffer.array(),buffer.arrayOffset(),
+                           buffer.capacity())) != -1)
+          n += k;
+      } finally {
+        in.close();
+        buffers.release(h);
+      }
+
+      if(offset == 0 && cache.accepts(n))
+        cache.put(key,ByteBuffer.wrap(readAll(archive,entry)));
+
+      return n;
+    } finally {
+      scarce.freeResource(token);
+    }
+  }
+
+  static byte[] readAll(ZipArchive archive,ArchiveEntry entry)
+    throws IOException {
+
+    byte[] b = new byte[(int) entry.getSize()];
+    InputStream in = archive.getInputStream(entry);
+    try {
+      int n = 0, k;
+      while(n < b.length && (k = in.read(b,n,b.length - n)) != -1)
+        n += k;
+    } finally {
+      in.close();
+    }
+
+    return b;
+  }
+
+  /**
+   * A zip with stored and deflated entries of several sizes
+   */
+  static void writeZip(File f) throws IOException {
+    Random random = new Random(1);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+
+    try {
+      for(int i=0;i<64;i++) {
+        byte[] b = new byte[1024 << (i % 10)];
+        for(int j=0;j<b.length;j++)
+          b[j] = (byte) ('a' + random.nextInt(8));
+
+        ZipEntry e = new ZipEntry("dir" + (i % 4) + "/file" + i + ".txt");
+        if(i % 3 == 0) {
+          CRC32 crc = new CRC32();
+          crc.update(b);
+          e.setMethod(ZipEntry.STORED);
+          e.setSize(b.length);
+          e.setCompressedSize(b.length);
+          e.setCrc(crc.getValue());
+        } else {
+          e.setMethod(ZipEntry.DEFLATED);
+        }
+        out.putNextEntry(e);
+        out.write(b);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Usage figures of a resource pool, for JMX and the stats page
+ */
+public class PoolStats implements PoolStatsMBean, Metrics.Source {
+  private String       name;
+  private ResourcePool pool;
+
+  public PoolStats(String name,ResourcePool pool) {
+    this.name = name;
+    this.pool = pool;
+  }
+
+  /**
+   * Report the figures of a pool, with a prefix on the metric names
+   */
+  static void collect(Metrics.Collector c,String prefix,ResourcePool pool) {
+    c.gauge(prefix + "max_size","Maximum number of resources in the pool",
+            pool.getMaxSize());
+    c.gauge(prefix + "allocated","Resources in use",
+            pool.getUsedSize() - pool.getFreeEntries());
+    c.gauge(prefix + "idle","Resources created and not in use",
+            pool.getFreeEntries());
+    c.counter(prefix + "creations_total","Resources created",
+              pool.getCreations());
+    c.counter(prefix + "destroys_total","Idle resources destroyed by flushes",
+              pool.getDestroys());
+    c.counter(prefix + "acquires_total","Resources handed out",
+              pool.getAcquires());
+    c.counter(prefix + "waits_total","Requests that waited for a resource",
+              pool.getWaits());
+    c.counter(prefix + "timeouts_total","Requests that found no resource in time",
+              pool.getTimeouts());
+    c.histogram(prefix + "wait","Time waiting for a resource",
+                pool.getWaitTime());
+  }
+
+  public String[] getLabels() {
+    return new String[] { "pool", name };
+  }
+
+  public void collect(Metrics.Collector c) {
+    collect(c,"pool_",pool);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxSize() {
+    return pool.getMaxSize();
+  }
+
+  public int getAllocated() {
+    return pool.getUsedSize() - pool.getFreeEntries();
+  }
+
+  public int getIdle() {
+    return pool.getFreeEntries();
+  }
+
+  public long getCreations() {
+    return pool.getCreations();
+  }
+
+  public long getDestroys() {
+    return pool.getDestroys();
+  }
+
+  public long getAcquires() {
+    return pool.getAcquires();
+  }
+
+  public long getWaits() {
+    return pool.getWaits();
+  }
+
+  public long getTimeouts() {
+    return pool.getTimeouts();
+  }
+
+  public long getWaitTimeP50Micros() {
+    return pool.getWaitTime().quantile(0.5) / 1000;
+  }
+
+  public long getWaitTimeP99Micros() {
+    return pool.getWaitTime().quantile(0.99) / 1000;
+  }
+
+  public long getWaitTimeTotalMicros() {
+    return pool.getWaitTime().getSum() / 1000;
+  }
+}
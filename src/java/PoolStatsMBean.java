@@ -0,0 +1,17 @@
+/**
+ * JMX view of a resource pool
+ */
+public interface PoolStatsMBean {
+  public String getName();
+  public int getMaxSize();
+  public int getAllocated();
+  public int getIdle();
+  public long getCreations();
+  public long getDestroys();
+  public long getAcquires();
+  public long getWaits();
+  public long getTimeouts();
+  public long getWaitTimeP50Micros();
+  public long getWaitTimeP99Micros();
+  public long getWaitTimeTotalMicros();
+}
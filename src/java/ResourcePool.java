@@ -1,129 +1,411 @@
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
- * Implements a pool of resources
+ * Implements a pool of resources.
+ * Idle resources are kept on a lock-free stack and the pool size is
+ * enforced by a semaphore, so getting and releasing a resource are
+ * O(1) and never serialize on a monitor. Periodic sweeps destroy the
+ * resources left idle and fit the size to the demand.
  */
 public class ResourcePool {
   /**
-   * The actual pool of resources
+   * A resource taken from the pool.
+   * Resources are released through their handle, so the pool never
+   * has to search for them. Handles are reused with their resource:
+   * a handle must not be touched after it is released.
    */
-  private Object[] pool;
+  public static class Handle {
+    /**
+     * The pooled object
+     */
+    private final Object resource;
+
+    /**
+     * Pool the resource belongs to, null for unpooled resources
+     */
+    private final ResourcePool owner;
+
+    /**
+     * The object is being used externally
+     */
+    private final AtomicBoolean allocated = new AtomicBoolean();
+
+    /**
+     * When the resource was last released, from System.nanoTime
+     */
+    private volatile long idleSince;
+
+    Handle(Object resource,ResourcePool owner) {
+      this.resource = resource;
+      this.owner    = owner;
+    }
+
+    /**
+     * The pooled object
+     */
+    public Object get() {
+      return resource;
+    }
+  }
 
   /**
-   * Status of each pool entry
+   * Semaphore whose permits may also be taken away, for shrinking
    */
-  private int[] poolStatus;
+  private static final class Permits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    Permits(int permits,boolean fair) {
+      super(permits,fair);
+    }
+
+    void reduce(int reduction) {
+      reducePermits(reduction);
+    }
+  }
 
   /**
-   * Unused state
+   * Maximum number of resources
    */
-  private static final int UNUSED      = 0;
+  private volatile int maxSize;
 
   /**
-   * The object exists but is not being used externally
+   * One permit for each resource that may still be handed out
    */
-  private static final int INITIALIZED = 1;
+  private final Permits permits;
 
   /**
-   * The object is being used externally
+   * Resources that exist but are not being used externally.
+   * Used as a stack, so the most recently used resources are reused
+   * first and the others age out on sweeps.
    */
-  private static final int ALLOCATED   = 2;
+  private final ConcurrentLinkedDeque<Handle> idle =
+    new ConcurrentLinkedDeque<Handle>();
 
   /**
    * The used size of the pool.
-   * Number of INITIALIZED + ALLOCATED
+   * Number of idle + allocated resources
    */
-  private int usedSize;
+  private final AtomicInteger usedSize = new AtomicInteger();
 
   /**
    * Free entries on the pool.
-   * Number of INITIALIZED
+   * Number of idle resources
+   */
+  private final AtomicInteger freeEntries = new AtomicInteger();
+
+  /**
+   * Resources being used externally, and the most at once since the
+   * last sweep
    */
-  private int freeEntries;
+  private final AtomicInteger inUse     = new AtomicInteger();
+  private final AtomicInteger peakInUse = new AtomicInteger();
+
+  /**
+   * Timeouts counted by the last sweep
+   */
+  private long sweptTimeouts;
 
   /**
    * External object responsible for creating resources
    */
-  private ResourceCreator creator;
+  private final ResourceCreator creator;
+
+  /**
+   * Usage counters
+   */
+  private final LongAdder creations = new LongAdder();
+  private final LongAdder destroys  = new LongAdder();
+  private final LongAdder acquires  = new LongAdder();
+  private final LongAdder waits     = new LongAdder();
+  private final LongAdder timeouts  = new LongAdder();
+
+  /**
+   * Time spent waiting for a resource, when one wasn't available
+   */
+  private final LatencyHistogram waitTime = new LatencyHistogram();
 
   /**
    * Instantiate the resource pool
    */
   public ResourcePool(int max_size,ResourceCreator creator) {
-    pool = new Object[max_size];
-    poolStatus = new int[max_size];
-    usedSize = 0;
-    freeEntries = 0;
+    this(max_size,creator,false);
+  }
 
+  /**
+   * Instantiate the resource pool.
+   * A fair pool hands resources to waiting threads in FIFO order.
+   */
+  public ResourcePool(int max_size,ResourceCreator creator,boolean fair) {
+    this.maxSize = max_size;
     this.creator = creator;
+    permits = new Permits(max_size,fair);
+  }
+
+  /**
+   * Maximum number of resources
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Number of resources created and not destroyed
+   */
+  public int getUsedSize() {
+    return usedSize.get();
+  }
+
+  /**
+   * Number of idle resources
+   */
+  public int getFreeEntries() {
+    return freeEntries.get();
+  }
+
+  /**
+   * Number of resources ever created
+   */
+  public long getCreations() {
+    return creations.sum();
+  }
+
+  /**
+   * Number of resources destroyed by flushes and sweeps
+   */
+  public long getDestroys() {
+    return destroys.sum();
+  }
+
+  /**
+   * Number of resources handed out
+   */
+  public long getAcquires() {
+    return acquires.sum();
+  }
+
+  /**
+   * Number of requests that had to wait for a resource
+   */
+  public long getWaits() {
+    return waits.sum();
+  }
+
+  /**
+   * Number of requests that gave up waiting, or found the pool full
+   * when they couldn't wait
+   */
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
 
-    for(int i=0;i<max_size;i++)
-      poolStatus[i] = UNUSED;
-  }
-
-  /**
-   * Get one element from the pool
-   */
-  public Object getResource() {
-    int i;
-
-    synchronized(pool) {
-      while(true) {
-        if(freeEntries > 0) {
-          for(i=0;i<pool.length && poolStatus[i]!=INITIALIZED;i++) ;
-          poolStatus[i] = ALLOCATED;
-          freeEntries--;
-          //System.out.println("allocate:"+pool.length+"/"+usedSize+"/"+freeEntries);
-          return pool[i];
-        } else if(usedSize < pool.length) {
-          for(i=0;i<pool.length && poolStatus[i]!=UNUSED;i++) ;
-          pool[i] = creator.createResource();
-          usedSize++;
-          poolStatus[i] = ALLOCATED;
-          //System.out.println("create:"+pool.length+"/"+usedSize+"/"+freeEntries);
-          return pool[i];
-        } else {
-          try {
-            pool.wait();
-          } catch(InterruptedException e) {
-          }
-        }
+  /**
+   * Time spent by the requests that had to wait
+   */
+  public LatencyHistogram getWaitTime() {
+    return waitTime;
+  }
+
+  /**
+   * Get one element from the pool, waiting for one if needed.
+   * Returns null if a new resource could not be created.
+   */
+  public Handle getResource() throws InterruptedException {
+    if(!permits.tryAcquire(0,TimeUnit.NANOSECONDS)) {
+      long start = System.nanoTime();
+      waits.increment();
+      try {
+        permits.acquire();
+      } finally {
+        waitTime.record(System.nanoTime() - start);
       }
     }
+    return take();
   }
 
-    /**
-     * Release one element to the pool
-     */
-    public void freeResource(Object resource) {
-        int i;
-
-        synchronized(pool) {
-            for(i=0;i<pool.length && pool[i]!=resource;i++) ;
-            poolStatus[i] = INITIALIZED;
-            freeEntries++;
-            //System.out.println("release:"+pool.length+"/"+usedSize+"/"+freeEntries);
-            pool.notify();
-        }
+  /**
+   * Get one element from the pool, waiting at most timeout.
+   * Returns null on timeout or if a new resource could not be created.
+   */
+  public Handle getResource(long timeout,TimeUnit unit)
+    throws InterruptedException {
+
+    if(!permits.tryAcquire(0,TimeUnit.NANOSECONDS)) {
+      long start = System.nanoTime();
+      boolean acquired = false;
+      waits.increment();
+      try {
+        acquired = permits.tryAcquire(timeout,unit);
+      } finally {
+        waitTime.record(System.nanoTime() - start);
+      }
+      if(!acquired) {
+        timeouts.increment();
+        return null;
+      }
     }
+    return take();
+  }
 
-    /**
-     * Flush the pool
-     */
-    public void flushResources() {
-        int i;
-
-        synchronized(pool) {
-            //System.out.println("flush:"+pool.length+"/"+usedSize+"/"+freeEntries);
-            for(i=0;i<pool.length;i++) {
-                if(poolStatus[i] == INITIALIZED) {
-                    creator.destroyResource(pool[i]);
-                    pool[i] = null;
-                    poolStatus[i] = UNUSED;
-                    freeEntries--;
-                    usedSize--;
-                }
-            }
-            pool.notify();
-        }
+  /**
+   * Get one element from the pool without waiting.
+   * Returns null if every element is allocated and the pool is full.
+   */
+  public Handle tryGetResource() {
+    if(!permits.tryAcquire()) {
+      timeouts.increment();
+      return null;
     }
-}
+    return take();
+  }
+
+  /**
+   * Take an idle resource or create one; the caller holds a permit
+   */
+  private Handle take() {
+    Handle h = idle.pollFirst();
+
+    if(h != null) {
+      freeEntries.decrementAndGet();
+    } else {
+      Object resource;
+
+      try {
+        resource = creator.createResource();
+      } catch(RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+
+      if(resource == null) {
+        permits.release();
+        return null;
+      }
+
+      h = new Handle(resource,this);
+      usedSize.incrementAndGet();
+      creations.increment();
+    }
+
+    h.allocated.set(true);
+    acquires.increment();
+
+    int n = inUse.incrementAndGet();
+    for(int peak;(peak = peakInUse.get()) < n;)
+      if(peakInUse.compareAndSet(peak,n))
+        break;
 
+    return h;
+  }
+
+  /**
+   * Release one element to the pool.
+   * Returns false if the element does not belong to this pool or was
+   * already released.
+   */
+  public boolean freeResource(Handle h) {
+    if(h == null || h.owner != this || !h.allocated.compareAndSet(true,false))
+      return false;
+
+    inUse.decrementAndGet();
+    h.idleSince = System.nanoTime();
+    idle.offerFirst(h);
+    freeEntries.incrementAndGet();
+    permits.release();
+    return true;
+  }
+
+  /**
+   * Give up an element that can't be released because something else
+   * may still be using it. The pool forgets it, and it is left to the
+   * garbage collector rather than destroyed.
+   * Returns false if the element does not belong to this pool or was
+   * already released.
+   */
+  public boolean abandonResource(Handle h) {
+    if(h == null || h.owner != this || !h.allocated.compareAndSet(true,false))
+      return false;
+
+    inUse.decrementAndGet();
+    usedSize.decrementAndGet();
+    permits.release();
+    return true;
+  }
+
+  /**
+   * Sweep the pool, from a single thread at regular intervals.
+   * The maximum size follows the demand seen since the last sweep: it
+   * doubles if requests found the pool full, and otherwise comes down
+   * towards half again the most resources used at once. Resources idle
+   * for longer than maxIdle nanoseconds are then destroyed, oldest
+   * first, keeping at least floor resources and as many as that peak.
+   *
+   * @param min least maximum size
+   * @param max greatest maximum size
+   * @return number of resources destroyed
+   */
+  public int sweep(long maxIdle,int floor,int min,int max) {
+    int  peak   = peakInUse.getAndSet(inUse.get());
+    long missed = timeouts.sum() - sweptTimeouts;
+
+    sweptTimeouts += missed;
+
+    int size = maxSize;
+    if(missed > 0)
+      size = size * 2;
+    else if(peak + peak / 2 < size)
+      size = Math.max(peak + peak / 2,size / 2);
+    setMaxSize(Math.max(min,Math.min(max,size)));
+
+    int  keep      = Math.max(floor,peak);
+    long now       = System.nanoTime();
+    int  destroyed = 0;
+    Handle h;
+
+    while(usedSize.get() > keep && (h = idle.pollLast()) != null) {
+      if(now - h.idleSince < maxIdle) {
+        idle.offerLast(h);
+        break;
+      }
+      freeEntries.decrementAndGet();
+      usedSize.decrementAndGet();
+      destroys.increment();
+      creator.destroyResource(h.resource);
+      destroyed++;
+    }
+
+    return destroyed;
+  }
+
+  /**
+   * Change the maximum number of resources.
+   * Resources over a lowered maximum go when released and swept.
+   */
+  private void setMaxSize(int size) {
+    int delta = size - maxSize;
+
+    maxSize = size;
+    if(delta > 0)
+      permits.release(delta);
+    else if(delta < 0)
+      permits.reduce(-delta);
+  }
+
+  /**
+   * Flush the pool: destroy every idle resource
+   */
+  public void flushResources() {
+    Handle h;
+
+    while((h = idle.pollLast()) != null) {
+      freeEntries.decrementAndGet();
+      usedSize.decrementAndGet();
+      destroys.increment();
+      creator.destroyResource(h.resource);
+    }
+  }
+}
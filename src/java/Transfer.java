@@ -0,0 +1,114 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk copy of entry contents to the client
+ */
+public class Transfer {
+  /**
+   * Copies everything from in to out, until the end of in.
+   * The size is only a hint for choosing the buffer, which must come
+   * from a heap buffer pool.
+   *
+   * @return number of bytes copied
+   * @throws ClientAbortException if writing to out fails
+   */
+  public static long copy(InputStream in,
+                          OutputStream out,
+                          long size,
+                          BufferPool buffers)
+    throws IOException {
+
+    ResourcePool.Handle h = buffers.getBuffer(size);
+    ByteBuffer buffer = (ByteBuffer) h.get();
+    byte[] b = buffer.array();
+    int    offset = buffer.arrayOffset();
+    int    length = buffer.capacity();
+    long   total = 0;
+    int    n;
+
+    try {
+      while((n = in.read(b,offset,length)) != -1) {
+        try {
+          out.write(b,offset,n);
+        } catch(IOException e) {
+          throw new ClientAbortException(e);
+        }
+        total += n;
+      }
+    } finally {
+      buffers.release(h);
+    }
+
+    return total;
+  }
+
+  /**
+   * Copies exactly length bytes from in to out.
+   *
+   * @throws EOFException if in ends first
+   * @throws ClientAbortException if writing to out fails
+   */
+  public static void copyLength(InputStream in,
+                                OutputStream out,
+                                long length,
+                                BufferPool buffers)
+    throws IOException {
+
+    ResourcePool.Handle h = buffers.getBuffer(length);
+    ByteBuffer buffer = (ByteBuffer) h.get();
+    byte[] b = buffer.array();
+    int    offset = buffer.arrayOffset();
+    int    n;
+
+    try {
+      while(length > 0) {
+        n = in.read(b,offset,(int) Math.min(length,buffer.capacity()));
+        if(n == -1)
+          throw new EOFException("Entry shorter than expected");
+
+        try {
+          out.write(b,offset,n);
+        } catch(IOException e) {
+          throw new ClientAbortException(e);
+        }
+        length -= n;
+      }
+    } finally {
+      buffers.release(h);
+    }
+  }
+
+  /**
+   * Skips exactly n bytes of in
+   *
+   * @throws EOFException if in ends first
+   */
+  public static void skipFully(InputStream in,long n) throws IOException {
+    while(n > 0) {
+      long skipped = in.skip(n);
+      if(skipped <= 0) {
+        if(in.read() == -1)
+          throw new EOFException("Entry shorter than expected");
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * Writes a block to the client
+   *
+   * @throws ClientAbortException if writing to out fails
+   */
+  public static void write(OutputStream out,byte[] b) throws IOException {
+    try {
+      out.write(b);
+    } catch(IOException e) {
+      throw new ClientAbortException(e);
+    }
+  }
+}
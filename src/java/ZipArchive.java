@@ -0,0 +1,924 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read only view of a zip file through a FileChannel.
+ * The central directory is parsed once; entry data is read with
+ * positional reads, so one instance can be shared by any number of
+ * threads.
+ */
+public class ZipArchive {
+  private static Logger logger =
+      Logger.getLogger(ZipArchive.class.getName());
+
+  static final int  LOCSIG   = 0x04034b50;
+  static final int  CENSIG   = 0x02014b50;
+  static final int  ENDSIG   = 0x06054b50;
+  static final int  ZIP64_ENDSIG = 0x06064b50;
+  static final int  ZIP64_LOCSIG = 0x07064b50;
+
+  static final int  LOCHDR   = 30;
+  static final int  CENHDR   = 46;
+  static final int  ENDHDR   = 22;
+  static final int  ZIP64_LOCHDR = 20;
+
+  static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+
+  /**
+   * Transfers at least this long use mapped slices when the target
+   * channel can't take a direct transfer
+   */
+  static final long MAP_THRESHOLD = 1024 * 1024;
+
+  /**
+   * Largest slice mapped at once
+   */
+  static final long MAP_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Buffer of a transfer the target channel stopped taking directly
+   */
+  static final int COPY_SIZE = 64 * 1024;
+
+  /**
+   * Inflaters kept for reuse, at first; sweeps fit the pool to the
+   * demand between MIN_INFLATERS and MAX_INFLATERS
+   */
+  static final int INFLATERS     = 10;
+  static final int MIN_INFLATERS = 2;
+  static final int MAX_INFLATERS = 64;
+
+  /**
+   * Idle inflaters kept warm however long they stay unused
+   */
+  static final int WARM_INFLATERS = 1;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * File name
+   */
+  private String file;
+
+  /**
+   * Channel over the file
+   */
+  private FileChannel channel;
+
+  /**
+   * Modification time of the file when opened
+   */
+  private long lastModified;
+
+  /**
+   * Length of the file when opened
+   */
+  private long length;
+
+  /**
+   * Short string identifying this file and version of it
+   */
+  private String identity;
+
+  /**
+   * Entries by name
+   */
+  private HashMap<String,ArchiveEntry> entries;
+
+  /**
+   * Entries in central directory order
+   */
+  private ArchiveEntry[] entryList;
+
+  /**
+   * Root of the directory tree
+   */
+  private ArchiveDirectory root;
+
+  /**
+   * Idle inflaters
+   */
+  private ResourcePool inflaters;
+
+  /**
+   * Checkpoint indexes of large DEFLATED entries, by entry name.
+   * Entries being indexed, or that couldn't be, map to NO_INDEX.
+   */
+  private final ConcurrentHashMap<String,Object> indexes =
+    new ConcurrentHashMap<String,Object>();
+
+  private static final Object NO_INDEX = new Object();
+
+  /**
+   * Where reads are accounted
+   */
+  private ArchiveStats stats;
+
+  /**
+   * Holders of the open file: the owner, until the archive is retired,
+   * and each open stream or transfer. The file is closed when the
+   * count drops to zero.
+   */
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * The owner gave up its reference
+   */
+  private final AtomicBoolean retired = new AtomicBoolean();
+
+  /**
+   * Budget the file handle was taken from, given back on close; null
+   * if none
+   */
+  private final HandleBudget budget;
+
+  /**
+   * The file was closed
+   */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Open a zip file and read its central directory
+   */
+  public ZipArchive(String file) throws IOException {
+    this(file,null);
+  }
+
+  /**
+   * Open a zip file and read its central directory, accounting reads
+   * on stats
+   */
+  public ZipArchive(String file,ArchiveStats stats) throws IOException {
+    this(file,stats,null);
+  }
+
+  /**
+   * Open a zip file with a handle taken from budget, which is given
+   * back when the file is closed. If the constructor fails, the handle
+   * is left to the caller.
+   */
+  public ZipArchive(String file,ArchiveStats stats,HandleBudget budget)
+    throws IOException {
+
+    this.file = file;
+    this.budget = budget;
+    this.stats = stats != null ? stats : new ArchiveStats(null);
+    inflaters = new ResourcePool(INFLATERS,new ResourceCreator() {
+      public Object createResource() {
+        return new Inflater(true);
+      }
+
+      public void destroyResource(Object resource) {
+        ((Inflater) resource).end();
+      }
+    });
+
+    channel = FileChannel.open(Paths.get(file),StandardOpenOption.READ);
+
+    try {
+      lastModified = Files.getLastModifiedTime(Paths.get(file)).toMillis();
+      length = channel.size();
+      identity = Long.toHexString(
+        (file.hashCode() * 31L + length) * 31L + lastModified);
+      File saved = CentralIndex.file(identity);
+      CentralIndex index = CentralIndex.load(saved,file,length,lastModified);
+
+      if(index != null) {
+        entryList = index.entries;
+        entries   = new HashMap<String,ArchiveEntry>(entryList.length * 2);
+        for(ArchiveEntry e : entryList)
+          if(!entries.containsKey(e.getName()))
+            entries.put(e.getName(),e);
+        root = index.root;
+      } else {
+        readCentralDirectory();
+        root = ArchiveDirectory.build(entryList);
+
+        if(saved != null)
+          CentralIndex.saveLater(saved,file,length,lastModified,
+                                 entryList,root);
+      }
+    } catch(IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Name of the zip file
+   */
+  public String getName() {
+    return file;
+  }
+
+  /**
+   * Modification time of the file, when it was opened
+   */
+  public long lastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Length of the file, when it was opened
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Identity of the archive, for entity tags.
+   * Changes when the file is replaced or modified.
+   */
+  public String getIdentity() {
+    return identity;
+  }
+
+  /**
+   * Number of entries
+   */
+  public int size() {
+    return entryList.length;
+  }
+
+  /**
+   * Get an entry by name, or null if not found.
+   * Like ZipFile, "name" also finds a "name/" directory entry.
+   */
+  public ArchiveEntry getEntry(String name) {
+    ArchiveEntry e = entries.get(name);
+
+    if(e == null && !name.endsWith("/"))
+      e = entries.get(name + "/");
+
+    return e;
+  }
+
+  /**
+   * Get a directory by path, with or without the trailing '/', or null
+   * if not found. "" is the root of the archive. Directories implied
+   * by the paths of files are found too.
+   */
+  public ArchiveDirectory getDirectory(String path) {
+    return root.find(path);
+  }
+
+  /**
+   * Entries in central directory order
+   */
+  public Enumeration<ArchiveEntry> entries() {
+    return Collections.enumeration(Arrays.asList(entryList));
+  }
+
+  /**
+   * Close the underlying file
+   */
+  public void close() throws IOException {
+    if(!closed.compareAndSet(false,true))
+      return;
+
+    try {
+      inflaters.flushResources();
+      channel.close();
+    } finally {
+      if(budget != null)
+        budget.release();
+    }
+  }
+
+  /**
+   * Close the file once the streams and transfers in progress end.
+   * Used when the file was replaced: readers of this version finish
+   * with it while new readers open the new one.
+   */
+  public void retire() {
+    if(retired.compareAndSet(false,true))
+      release();
+  }
+
+  /**
+   * Streams and transfers in progress
+   */
+  public int getActiveReaders() {
+    return Math.max(0,references.get() - (retired.get() ? 0 : 1));
+  }
+
+  /**
+   * Take a reference to the file, failing if it was closed.
+   * Streams and transfers take their own; a caller making several
+   * holds one across them, so the archive can't be closed in between.
+   * Each retain must be followed by a release.
+   */
+  public void retain() throws IOException {
+    if(!tryRetain())
+      throw new ClosedChannelException();
+  }
+
+  /**
+   * Take a reference to the file if it is still open
+   *
+   * @return false if it was closed
+   */
+  boolean tryRetain() {
+    for(;;) {
+      int n = references.get();
+      if(n == 0)
+        return false;
+      if(references.compareAndSet(n,n + 1))
+        return true;
+    }
+  }
+
+  /**
+   * Drop a reference to the file, closing it if it was the last
+   */
+  public void release() {
+    int n = references.decrementAndGet();
+
+    if(n == 1 && budget != null && !retired.get())
+      budget.idle();
+    if(n != 0)
+      return;
+
+    try {
+      close();
+    } catch(IOException e) {
+      logger.warning("Can't close " + file + ": " + e);
+    }
+  }
+
+  /**
+   * Pool of idle inflaters
+   */
+  public ResourcePool getInflaterPool() {
+    return inflaters;
+  }
+
+  /**
+   * Release the inflaters not in use
+   */
+  public void flushInflaters() {
+    inflaters.flushResources();
+  }
+
+  /**
+   * Release the inflaters idle for longer than maxIdle milliseconds,
+   * and fit the pool to the demand
+   *
+   * @return number of inflaters released
+   */
+  public int sweepInflaters(long maxIdle) {
+    return inflaters.sweep(TimeUnit.MILLISECONDS.toNanos(maxIdle),
+                           WARM_INFLATERS,MIN_INFLATERS,MAX_INFLATERS);
+  }
+
+  /**
+   * Stream with the contents of an entry.
+   * Any number of streams may be open at the same time, from any
+   * threads; each must be closed to give back its inflater.
+   */
+  public InputStream getInputStream(ArchiveEntry entry) throws IOException {
+    if(entry.isEncrypted())
+      throw new ZipException("encrypted entry: " + entry.getName());
+
+    // Checked before the stream takes its reference on the archive
+    int method = entry.getMethod();
+    if(method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+      throw new ZipException("unsupported compression method " +
+                             method + ": " + entry.getName());
+
+    InputStream in = new EntryDataStream(entry,0);
+    stats.entryStreams.increment();
+
+    if(method == ZipEntry.STORED)
+      return in;
+
+    ResourcePool.Handle h = inflaters.tryGetResource();
+    if(h == null)
+      h = new ResourcePool.Handle(new Inflater(true),null);
+
+    int size = (int) Math.min(entry.getCompressedSize() + 1,65536);
+    return new EntryInflaterStream(in,h,Math.max(size,512));
+  }
+
+  /**
+   * Stream with the data of an entry as stored on the archive,
+   * compressed or not
+   */
+  public InputStream getRawInputStream(ArchiveEntry entry) throws IOException {
+    stats.entryStreams.increment();
+    return new EntryDataStream(entry,0);
+  }
+
+  /**
+   * Stream with the contents of an entry, from an offset.
+   * Large DEFLATED entries are decoded from the nearest checkpoint of
+   * their index once it is built; the first such read starts building
+   * it in the background and inflates from the start of the entry.
+   */
+  public InputStream getInputStream(ArchiveEntry entry,long offset)
+    throws IOException {
+
+    InputStream in = null;
+
+    if(offset > 0 && InflateIndex.indexable(entry)) {
+      InflateIndex index = getIndex(entry);
+
+      if(index != null) {
+        InflateIndex.Checkpoint c = index.find(offset);
+        long skip = c.bit >>> 3;
+        byte[] window = InflateIndex.window(c);
+
+        InputStream data = new EntryDataStream(entry,skip);
+        stats.entryStreams.increment();
+        try {
+          in = new CheckpointInflater(data,c.bit,c.out,window);
+        } catch(IOException e) {
+          data.close();
+          throw e;
+        }
+        offset -= c.out;
+      }
+    }
+
+    if(in == null)
+      in = getInputStream(entry);
+
+    try {
+      Transfer.skipFully(in,offset);
+    } catch(IOException e) {
+      in.close();
+      throw e;
+    }
+
+    return in;
+  }
+
+  /**
+   * Checkpoint index of an entry, or null if not available yet.
+   * The first call loads a saved index or builds one, in the
+   * background.
+   */
+  InflateIndex getIndex(final ArchiveEntry entry) throws IOException {
+    final String name = entry.getName();
+    Object index = indexes.get(name);
+
+    if(index != null)
+      return index != NO_INDEX ? (InflateIndex) index : null;
+    if(indexes.putIfAbsent(name,NO_INDEX) != null)
+      return null;
+
+    final File f = InflateIndex.file(identity,entry);
+
+    InflateIndex.schedule(new Runnable() {
+      public void run() {
+        InflateIndex index = InflateIndex.load(f,entry);
+
+        if(index == null) {
+          try {
+            index = InflateIndex.build(new EntryDataStream(entry,0),entry);
+          } catch(IOException e) {
+            logger.warning("Can't index " + name + " of " + file + ": " + e);
+            return;
+          }
+          index.save(f);
+        }
+
+        indexes.put(name,index);
+      }
+    });
+
+    return null;
+  }
+
+  /**
+   * Give back the inflater of a closed stream, or end it if the archive
+   * was closed meanwhile: its pool is flushed for good then
+   */
+  private void releaseInflater(ResourcePool.Handle h) {
+    Inflater inf = (Inflater) h.get();
+
+    if(closed.get()) {
+      inflaters.abandonResource(h);
+      inf.end();
+      return;
+    }
+
+    inf.reset();
+    if(!inflaters.freeResource(h))
+      inf.end();
+    else if(closed.get())
+      // Closed while it was freed, maybe after the flush
+      inflaters.flushResources();
+  }
+
+  /**
+   * Raw entry data, read with positional reads on the shared channel
+   */
+  class EntryDataStream extends InputStream {
+    private long position;
+    private long end;
+
+    private boolean closed;
+
+    /**
+     * The data of entry from skip bytes in.
+     * The archive is retained before its local header is read.
+     */
+    EntryDataStream(ArchiveEntry entry,long skip) throws IOException {
+      retain();
+      try {
+        position = getDataOffset(entry) + skip;
+      } catch(IOException e) {
+        release();
+        throw e;
+      }
+      end = position + entry.getCompressedSize() - skip;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b,0,1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b,int off,int len) throws IOException {
+      if(position >= end)
+        return -1;
+      if(len == 0)
+        return 0;
+
+      len = (int) Math.min(len,end - position);
+      long start = System.nanoTime();
+      int n = channel.read(ByteBuffer.wrap(b,off,len),position);
+      stats.readTime.record(System.nanoTime() - start);
+      stats.reads.increment();
+      if(n < 0)
+        throw new EOFException("Unexpected end of " + file);
+
+      position += n;
+      stats.bytesRead.add(n);
+      return n;
+    }
+
+    public long skip(long n) {
+      n = Math.max(0,Math.min(n,end - position));
+      position += n;
+      return n;
+    }
+
+    public int available() {
+      return (int) Math.min(end - position,Integer.MAX_VALUE);
+    }
+
+    public void close() {
+      if(!closed) {
+        closed = true;
+        release();
+      }
+    }
+  }
+
+  /**
+   * Inflated entry data
+   */
+  class EntryInflaterStream extends InflaterInputStream {
+    private ResourcePool.Handle handle;
+    private boolean eof = false;
+
+    EntryInflaterStream(InputStream in,ResourcePool.Handle handle,int size) {
+      super(in,(Inflater) handle.get(),size);
+      this.handle = handle;
+    }
+
+    /**
+     * Inflates and discards n bytes, in larger steps than
+     * InflaterInputStream.skip
+     */
+    public long skip(long n) throws IOException {
+      if(n <= 0)
+        return 0;
+
+      byte[] b = new byte[(int) Math.min(n,65536)];
+      long   skipped = 0;
+      int    r;
+
+      while(skipped < n &&
+            (r = read(b,0,(int) Math.min(n - skipped,b.length))) != -1)
+        skipped += r;
+
+      return skipped;
+    }
+
+    /**
+     * A raw inflater may need one byte past the end of the data
+     */
+    protected void fill() throws IOException {
+      if(eof)
+        throw new EOFException("Unexpected end of ZLIB input stream");
+
+      len = in.read(buf,0,buf.length);
+      if(len == -1) {
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf,0,len);
+    }
+
+    public void close() throws IOException {
+      if(handle != null) {
+        releaseInflater(handle);
+        handle = null;
+      }
+      super.close();
+    }
+  }
+
+  /**
+   * Reads exactly buffer.remaining() bytes at a position of the file
+   */
+  private void readFully(ByteBuffer buffer,long position) throws IOException {
+    while(buffer.hasRemaining()) {
+      int n = channel.read(buffer,position);
+      if(n < 0)
+        throw new EOFException("Unexpected end of " + file);
+      position += n;
+    }
+  }
+
+  private ByteBuffer read(long position,int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(buffer,position);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Locate the end of central directory record and read every entry
+   */
+  private void readCentralDirectory() throws IOException {
+    long fileSize = channel.size();
+    if(fileSize < ENDHDR)
+      throw new ZipException("zip file is empty: " + file);
+
+    // The end record is followed by a comment of up to 64k
+    int tail = (int) Math.min(fileSize,ENDHDR + 0xFFFF);
+    long tailStart = fileSize - tail;
+    ByteBuffer b = read(tailStart,tail);
+
+    int end = -1;
+    for(int i=tail-ENDHDR;i>=0;i--) {
+      if(b.getInt(i) == ENDSIG &&
+         i + ENDHDR + (b.getShort(i + 20) & 0xFFFF) <= tail) {
+        end = i;
+        break;
+      }
+    }
+    if(end == -1)
+      throw new ZipException("zip END header not found: " + file);
+
+    long count  = b.getShort(end + 10) & 0xFFFF;
+    long cenLen = b.getInt(end + 12) & 0xFFFFFFFFL;
+    long cenPos = b.getInt(end + 16) & 0xFFFFFFFFL;
+
+    long endPos = tailStart + end;
+    if(endPos >= ZIP64_LOCHDR) {
+      ByteBuffer loc = read(endPos - ZIP64_LOCHDR,ZIP64_LOCHDR);
+      if(loc.getInt(0) == ZIP64_LOCSIG) {
+        ByteBuffer end64 = read(loc.getLong(8),56);
+        if(end64.getInt(0) != ZIP64_ENDSIG)
+          throw new ZipException("invalid zip64 END header: " + file);
+        count  = end64.getLong(32);
+        cenLen = end64.getLong(40);
+        cenPos = end64.getLong(48);
+      }
+    }
+
+    if(cenPos + cenLen > fileSize || cenLen > Integer.MAX_VALUE ||
+       count < 0 || count > cenLen / CENHDR)
+      throw new ZipException("invalid central directory: " + file);
+
+    ByteBuffer cen = read(cenPos,(int) cenLen);
+
+    entries   = new HashMap<String,ArchiveEntry>((int) count * 2);
+    entryList = new ArchiveEntry[(int) count];
+
+    int pos = 0;
+    for(int i=0;i<count;i++) {
+      if(pos + CENHDR > cenLen || cen.getInt(pos) != CENSIG)
+        throw new ZipException("invalid central directory header: " + file);
+
+      int  flags    = cen.getShort(pos + 8) & 0xFFFF;
+      int  method   = cen.getShort(pos + 10) & 0xFFFF;
+      long dostime  = cen.getInt(pos + 12) & 0xFFFFFFFFL;
+      long crc      = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+      long csize    = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+      long size     = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+      int  nameLen  = cen.getShort(pos + 28) & 0xFFFF;
+      int  extraLen = cen.getShort(pos + 30) & 0xFFFF;
+      int  commLen  = cen.getShort(pos + 32) & 0xFFFF;
+      long offset   = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+      int next = pos + CENHDR + nameLen + extraLen + commLen;
+      if(next > cenLen)
+        throw new ZipException("invalid central directory header: " + file);
+
+      String name = new String(cen.array(),pos + CENHDR,nameLen,UTF8);
+
+      byte[] extra = null;
+      if(extraLen > 0) {
+        extra = new byte[extraLen];
+        System.arraycopy(cen.array(),pos + CENHDR + nameLen,extra,0,extraLen);
+      }
+
+      // Zip64 extended information: only the fields saturated on
+      // the central directory header are present, in this order
+      if(extra != null &&
+         (size == ZIP64_MAGICVAL || csize == ZIP64_MAGICVAL ||
+          offset == ZIP64_MAGICVAL)) {
+        ByteBuffer x = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        int xpos = 0;
+        while(xpos + 4 <= extraLen) {
+          int tag = x.getShort(xpos) & 0xFFFF;
+          int sz  = x.getShort(xpos + 2) & 0xFFFF;
+          int data = xpos + 4;
+          if(tag == 0x0001) {
+            if(size == ZIP64_MAGICVAL && data + 8 <= extraLen) {
+              size = x.getLong(data);
+              data += 8;
+            }
+            if(csize == ZIP64_MAGICVAL && data + 8 <= extraLen) {
+              csize = x.getLong(data);
+              data += 8;
+            }
+            if(offset == ZIP64_MAGICVAL && data + 8 <= extraLen)
+              offset = x.getLong(data);
+            break;
+          }
+          xpos = data + sz;
+        }
+      }
+
+      ArchiveEntry e = new ArchiveEntry(name);
+      e.method = method;
+      e.setTime(dosToJavaTime(dostime));
+      if(extra != null) {
+        try {
+          e.setExtra(extra);
+        } catch(IllegalArgumentException iae) {
+        }
+      }
+      e.setCrc(crc);
+      e.setSize(size);
+      e.setCompressedSize(csize);
+      e.flags = flags;
+      e.localHeaderOffset = offset;
+
+      entryList[i] = e;
+      if(!entries.containsKey(name))
+        entries.put(name,e);
+
+      pos = next;
+    }
+  }
+
+  /**
+   * Converts a MS-DOS date and time to milliseconds since the epoch
+   */
+  static long dosToJavaTime(long dtime) {
+    GregorianCalendar c = new GregorianCalendar(
+        (int) (((dtime >> 25) & 0x7f) + 1980),
+        (int) (((dtime >> 21) & 0x0f) - 1),
+        (int) ((dtime >> 16) & 0x1f),
+        (int) ((dtime >> 11) & 0x1f),
+        (int) ((dtime >> 5) & 0x3f),
+        (int) ((dtime << 1) & 0x3e));
+
+    return c.getTimeInMillis();
+  }
+
+  /**
+   * Offset of the entry data on the file.
+   * Reads the local header the first time.
+   */
+  public long getDataOffset(ArchiveEntry entry) throws IOException {
+    long offset = entry.dataOffset;
+
+    if(offset < 0) {
+      ByteBuffer loc = read(entry.localHeaderOffset,LOCHDR);
+      if(loc.getInt(0) != LOCSIG)
+        throw new ZipException("invalid LOC header: " + entry.getName());
+
+      offset = entry.localHeaderOffset + LOCHDR +
+        (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+      entry.dataOffset = offset;
+    }
+
+    return offset;
+  }
+
+  /**
+   * Sends count bytes of the raw entry data, starting at offset, to a
+   * channel. Socket and file channels get a direct transfer; other
+   * channels get mapped slices of the archive.
+   *
+   * @return bytes transferred
+   */
+  public long transferTo(ArchiveEntry entry,
+                         long offset,
+                         long count,
+                         WritableByteChannel target)
+    throws IOException {
+
+    if(offset < 0 || count < 0 || offset + count > entry.getCompressedSize())
+      throw new IllegalArgumentException("range outside entry data");
+
+    retain();
+    try {
+      return transfer(getDataOffset(entry) + offset,count,target);
+    } finally {
+      release();
+    }
+  }
+
+  private long transfer(long position,long count,WritableByteChannel target)
+    throws IOException {
+
+    long end = position + count;
+    long start = System.nanoTime();
+
+    if(target instanceof FileChannel ||
+       target instanceof SelectableChannel ||
+       count < MAP_THRESHOLD) {
+      while(position < end) {
+        long n = channel.transferTo(position,end - position,target);
+        if(n <= 0) {
+          // The target took nothing: copy the rest instead of retrying
+          copy(position,end,target);
+          break;
+        }
+        position += n;
+      }
+    } else {
+      while(position < end) {
+        long len = Math.min(MAP_SIZE,end - position);
+        MappedByteBuffer slice =
+          channel.map(FileChannel.MapMode.READ_ONLY,position,len);
+        while(slice.hasRemaining())
+          target.write(slice);
+        position += len;
+      }
+    }
+
+    stats.readTime.record(System.nanoTime() - start);
+    stats.reads.increment();
+    stats.bytesRead.add(count);
+    return count;
+  }
+
+  /**
+   * Sends the file from position to end through a buffer
+   */
+  private void copy(long position,long end,WritableByteChannel target)
+    throws IOException {
+
+    ByteBuffer buffer =
+      ByteBuffer.allocate((int) Math.min(COPY_SIZE,end - position));
+
+    while(position < end) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(),end - position));
+      if(channel.read(buffer,position) <= 0)
+        throw new EOFException("Unexpected end of " + file);
+      buffer.flip();
+      position += buffer.remaining();
+      while(buffer.hasRemaining())
+        target.write(buffer);
+    }
+  }
+}
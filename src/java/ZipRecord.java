@@ -1,5 +1,8 @@
+import java.io.File;
 import java.io.IOException;
-import java.util.zip.ZipFile;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A Zip file referenced in the system
@@ -31,57 +34,306 @@ public class ZipRecord {
   public EntryPoint[] entryPoints;
  
   /**
-   * This record corresponds to a valid zip file
+   * This record corresponds to a valid zip file; changed with setValid
    */
-  public boolean valid = true;
- 
+  public volatile boolean valid = true;
+
   /**
-   * Zip pool
+   * Times a record changed validity, of any repository
    */
-  private ResourcePool pool = null;
+  private static final AtomicLong validityChanges = new AtomicLong();
  
   /**
-   * Return a ZipFile from the pool
-   */
-  public ZipFile getZipFile() {
-    synchronized(this) {
-      if(pool == null)
-        pool = new ResourcePool(10,new ResourceCreator() {
-          public Object createResource() {
-            try {
-              //System.out.println("Opening "+file);
-              return new ZipFile(file);
-            } catch(IOException e) {
-              return null;
-            }
-          }
-
-          public void destroyResource(Object resource) {
-            try {
-              //System.out.println("Closing "+((ZipFile) resource).getName());
-              ((ZipFile) resource).close();
-            } catch(IOException e) {
-            }
-          }
-        });
+   * Shared view of the zip, opened on first use
+   */
+  private volatile ZipArchive archive = null;
+
+  /**
+   * The record left the repository: its archive is never opened again
+   */
+  private volatile boolean removed = false;
+
+  /**
+   * When the archive was last asked for, in milliseconds; updated at
+   * most once a second
+   */
+  private volatile long lastAccess;
+
+  /**
+   * Held while the archive is being opened.
+   * A lock rather than a monitor, so threads waiting for the open
+   * don't pin the carrier of a virtual thread.
+   */
+  private final ReentrantLock openLock = new ReentrantLock();
+
+  /**
+   * Budget of open archives this record takes its handle from
+   */
+  private final HandleBudget budget = HandleBudget.GLOBAL;
+
+  /**
+   * Usage figures of the archive
+   */
+  private final ArchiveStats stats = new ArchiveStats(this);
+
+  /**
+   * Return the shared archive view, opening it on first use.
+   * The archive is retained for the caller, who must release it when
+   * done; it can't be closed before then.
+   * Returns null if the file can't be read as a zip, if the record was
+   * removed, or if no handle of the budget became free in time.
+   */
+  public ZipArchive getArchive() {
+    try {
+      return openArchive();
+    } catch(NoHandleException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Like getArchive, but tells a spent budget apart from a bad file.
+   * Opening may wait for a handle, up to the timeout of the budget.
+   */
+  public ZipArchive openArchive() throws NoHandleException {
+    long now = System.currentTimeMillis();
+
+    // For the idle timeout and the order of evictions only
+    if(now - lastAccess > 1000)
+      lastAccess = now;
+
+    // Fails if the archive was closed since it was read
+    ZipArchive a = archive;
+    if(a != null && a.tryRetain())
+      return a;
+
+    lockForOpen();
+    try {
+      // A request still holding the previous repository
+      if(removed)
+        return null;
+
+      if(archive == null) {
+        if(!budget.acquire()) {
+          stats.budgetTimeouts.increment();
+          throw new NoHandleException(file);
+        }
+
+        long start = System.nanoTime();
+        try {
+          archive = new ZipArchive(file,stats,budget);
+          budget.opened(this);
+          stats.opens.increment();
+        } catch(IOException e) {
+          budget.release();
+          stats.openFailures.increment();
+          return null;
+        } finally {
+          stats.openTime.record(System.nanoTime() - start);
+        }
+      }
+
+      // Not closed while openLock is held
+      archive.tryRetain();
+      return archive;
+    } finally {
+      openLock.unlock();
+    }
+  }
+
+  /**
+   * Take openLock; with a limited budget, give up after its timeout,
+   * as the thread holding the lock may itself be waiting for a handle
+   */
+  private void lockForOpen() throws NoHandleException {
+    if(budget.getMaxOpen() == 0) {
+      openLock.lock();
+      return;
+    }
+
+    try {
+      if(openLock.tryLock(budget.getWaitTimeout(),TimeUnit.MILLISECONDS))
+        return;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    stats.budgetTimeouts.increment();
+    throw new NoHandleException(file);
+  }
+
+  /**
+   * Mark the record valid or not
+   */
+  public void setValid(boolean valid) {
+    if(this.valid != valid) {
+      this.valid = valid;
+      validityChanges.incrementAndGet();
+    }
+  }
+
+  /**
+   * Times a record changed validity, of any repository
+   */
+  static long getValidityChanges() {
+    return validityChanges.get();
+  }
+
+  /**
+   * The archive if it is open, without opening it
+   */
+  public ZipArchive peekArchive() {
+    return archive;
+  }
+
+  /**
+   * True if this record may be kept by a reloaded repository for the
+   * same virtual directory and file: it is valid, and the file has the
+   * size and modification time it had when the archive was opened.
+   */
+  public boolean sameAs(String vdir,String file) {
+    if(!valid || !virtualDir.equals(vdir) || !this.file.equals(file))
+      return false;
+
+    ZipArchive a = archive;
+    if(a == null)
+      return true;
+
+    File f = new File(file);
+    return f.length() == a.length() && f.lastModified() == a.lastModified();
+  }
+
+  /**
+   * Drop the open archive, because the file changed.
+   * Only the record's own reference is dropped: requests holding the
+   * archive from getArchive, and their streams, finish on the old file,
+   * which is closed after the last release. The next getArchive opens
+   * the file again.
+   */
+  public void invalidate() {
+    ZipArchive a;
+
+    openLock.lock();
+    try {
+      a = archive;
+      archive = null;
+      budget.closed(this);
+      setValid(true);
+    } finally {
+      openLock.unlock();
+    }
+
+    if(a != null) {
+      stats.replacements.increment();
+      a.retire();
+    }
+  }
+
+  /**
+   * Drop the open archive for good, because the record left the
+   * repository. Like invalidate, requests holding the archive finish on
+   * it; getArchive returns null from then on.
+   */
+  public void remove() {
+    ZipArchive a;
+
+    openLock.lock();
+    try {
+      removed = true;
+      a = archive;
+      archive = null;
+      budget.closed(this);
+    } finally {
+      openLock.unlock();
     }
-    
-    return (ZipFile) pool.getResource();
+
+    if(a != null)
+      a.retire();
   }
 
   /**
-   * Release a ZipFile from the pool
+   * Usage figures of the archive
    */
-  public void release(ZipFile zip) {
-    pool.freeResource(zip);
+  public ArchiveStats getStats() {
+    return stats;
   }
 
   /**
-   * Flush the zip pool
+   * Release what the archive has kept unused: the whole archive when
+   * nobody asked for it in idleTimeout milliseconds and no stream is
+   * open (0 keeps it open), or else the inflaters idle for longer than
+   * inflaterIdleTimeout.
    */
-  public void flushZips() {
-    if(pool != null)
-        pool.flushResources();
+  public void sweep(long idleTimeout,long inflaterIdleTimeout) {
+    ZipArchive a = archive;
+
+    if(a == null)
+      return;
+
+    if(idleTimeout > 0 &&
+       System.currentTimeMillis() - lastAccess > idleTimeout &&
+       a.getActiveReaders() == 0) {
+      openLock.lock();
+      if(close(a))
+        stats.idleCloses.increment();
+      return;
+    }
+
+    if(a.sweepInflaters(inflaterIdleTimeout) > 0)
+      stats.flushes.increment();
+  }
+
+  /**
+   * True if the archive is open and has no reader
+   */
+  boolean isIdle() {
+    ZipArchive a = archive;
+
+    return a != null && a.getActiveReaders() == 0;
+  }
+
+  /**
+   * When the archive was last asked for, in milliseconds
+   */
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  /**
+   * Close the archive to give its handle to another record, if it is
+   * still idle. Skipped if the record is busy opening, which may be
+   * waiting for the budget itself.
+   *
+   * @return true if closed
+   */
+  boolean evict() {
+    ZipArchive a = archive;
+
+    if(a == null || a.getActiveReaders() != 0 || !openLock.tryLock())
+      return false;
+    if(!close(a))
+      return false;
+
+    stats.evictions.increment();
+    return true;
+  }
+
+  /**
+   * Close the archive a unless it was replaced or got a reader. Called
+   * with openLock held, which it releases. A reader retaining it after
+   * the check keeps it open until done.
+   */
+  private boolean close(ZipArchive a) {
+    try {
+      if(archive != a || a.getActiveReaders() != 0)
+        return false;
+      archive = null;
+      budget.closed(this);
+    } finally {
+      openLock.unlock();
+    }
+
+    a.retire();
+    return true;
   }
 
   /**
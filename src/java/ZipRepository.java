@@ -4,71 +4,112 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
+/**
+ * The zip files served, as read from the init file.
+ * The file is read in a single streaming pass, so memory use doesn't
+ * grow with the number of zips beyond the records themselves.
+ */
 public class ZipRepository {
   private String      resourceFile;
   private ZipRecord[] zips;
   private HashMap<String,ZipRecord> htZips;
 
-  private static String getInnerText(Element el,String tag) {
-    Node n = el.getElementsByTagName(tag).item(0);
-
-    return n.hasChildNodes() ?
-      n.getFirstChild().getNodeValue() :
-      null;
+  /**
+   * Repositories loaded so far
+   */
+  private static final AtomicLong generations = new AtomicLong();
+
+  /**
+   * Tells this repository apart from the others loaded
+   */
+  private final String stamp =
+    Long.toHexString(generations.incrementAndGet()) + "-";
+
+  /**
+   * Metadata read for the kept records, set on them once the whole
+   * file has been read
+   */
+  private ArrayList<Update> updates = new ArrayList<Update>();
+
+  private static class Update {
+    ZipRecord    zip;
+    String       description;
+    String       defaultEntryPoint;
+    EntryPoint[] entryPoints;
   }
 
-  public Document getConfigDoc(InputStream file,boolean validate) {
-    DocumentBuilderFactory factory =
-      DocumentBuilderFactory.newInstance();
-    factory.setValidating(validate);
-    //factory.setNamespaceAware(true);
-    try {
-       DocumentBuilder builder = factory.newDocumentBuilder();
-       return builder.parse(file);
-    } catch(Throwable t) {
+  /**
+   * The record of previous for a virtual directory and file if it can
+   * be kept, or a new one
+   */
+  private static ZipRecord record(ZipRepository previous,String vdir,
+                                  String file) {
+    if(previous != null) {
+      ZipRecord old = previous.getZipRecord(vdir);
+
+      if(old != null && old.sameAs(vdir,file))
+        return old;
     }
 
-    return null;
+    return new ZipRecord();
   }
 
   public ZipRepository(String input_file) throws IOException,SAXException {
-    htZips = new HashMap<String,ZipRecord>();
+    this(input_file,null);
+  }
+
+  /**
+   * Load a repository, keeping the records of previous whose virtual
+   * directory and file haven't changed, with their open archive,
+   * indexes and figures.
+   * Errors in the file are reported as SAXParseExceptions with their
+   * line and column.
+   */
+  public ZipRepository(String input_file,ZipRepository previous)
+    throws IOException,SAXException {
 
-    ZipRecord zip;
+    htZips = new HashMap<String,ZipRecord>();
 
     ArrayList<ZipRecord> v_zips = new ArrayList<ZipRecord>();
-    ArrayList<EntryPoint> v_ep  = new ArrayList<EntryPoint>();
-    int n_entry_points;
 
-    NodeList    nl,snl;
-    Element     el,sel;
+    System.out.println("ZipRepository:Loading:" + input_file);
 
-    InputStream in = new FileInputStream(input_file);
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING,Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+                        Boolean.TRUE);
 
-    Document document = getConfigDoc(in, false);
-    in.close();
+    InputStream in = new FileInputStream(input_file);
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(input_file,in);
+      try {
+        read(reader,previous,v_zips);
+      } finally {
+        reader.close();
+      }
+    } catch(XMLStreamException e) {
+      Location l = e.getLocation();
+
+      throw new SAXParseException(e.getMessage(),null,input_file,
+                                  l != null ? l.getLineNumber() : -1,
+                                  l != null ? l.getColumnNumber() : -1,e);
+    } finally {
+      in.close();
+    }
 
-    System.out.println("ZipRepository:Loading:" + input_file);
+    if(resourceFile == null)
+      throw new SAXException("No ResourceZip File in " + input_file);
 
-    resourceFile =
-      ((Element)
-            ((Element) document.
-             getElementsByTagName("ResourceZip").
-             item(0)).
-            getElementsByTagName("File").
-            item(0)).
-      getFirstChild().
-      getNodeValue();
-
-    zip = new ZipRecord();
+    ZipRecord zip = record(previous,".resource",resourceFile);
     zip.virtualDir        = ".resource";
     zip.file              = resourceFile;
     zip.description       = "Resource file";
@@ -76,76 +117,160 @@ public class ZipRepository {
 
     htZips.put(".resource",zip);
 
-    //System.out.println("resource file: .resource -> "+resourceFile);
-
-    nl = ((Element) document.getElementsByTagName("ZipList").item(0)).
-      getElementsByTagName("ZipFile");
-    int n_zips = nl.getLength();
-
-    for(int i=0;i<n_zips;i++) {
-      el = (Element) nl.item(i);
-
-      String vdir = getInnerText(el,"VDir");
-      String file = getInnerText(el,"File");
-
-      //System.out.println("xml:vdir:"+vdir+" - File:"+file);
-
-      if(vdir == null || file == null)
-        continue;
-
-      zip = new ZipRecord();
-
-      zip.virtualDir        = vdir;
-      zip.file              = file;
-      zip.description       = getInnerText(el,"Description");
-      zip.defaultEntryPoint = getInnerText(el,"DefEntryPoint");
+    // A kept record is being served: its fields are only replaced,
+    // each with its final value
+    for(Update u : updates) {
+      u.zip.description       = u.description;
+      u.zip.defaultEntryPoint = u.defaultEntryPoint;
+      u.zip.entryPoints       = u.entryPoints;
+    }
+    updates = null;
 
-      //System.out.println("xml:desc:"+zip.description+" - dep:"+zip.defaultEntryPoint);
+    //System.out.println("resource file: .resource -> "+resourceFile);
+    //System.out.println(htZips);
 
-      snl = el.getElementsByTagName("DefEntryPoint");
-      if(snl != null && snl.getLength() > 0) {
-        for(int j=0 ; j<snl.getLength() ; j++) {
-          sel = (Element) snl.item(j);
+    v_zips.toArray(zips = new ZipRecord[v_zips.size()]);
+  }
 
-          if(sel.getElementsByTagName("RelURL").item(0).hasChildNodes()) {
-            zip.defaultEntryPoint = getInnerText(sel,"RelURL");
+  /**
+   * Read the elements of the init file:
+   * <pre>
+   *   ZipViewList
+   *     ResourceZip/File
+   *     ZipList/ZipFile*
+   *       VDir, File, Description
+   *       DefEntryPoint/RelURL
+   *       EntryPoint*
+   *         RelURL, Description
+   * </pre>
+   * Zips without a VDir or File, and entry points without a RelURL,
+   * are skipped.
+   */
+  private void read(XMLStreamReader reader,ZipRepository previous,
+                    ArrayList<ZipRecord> v_zips)
+    throws XMLStreamException {
+
+    ArrayList<EntryPoint> v_ep = new ArrayList<EntryPoint>();
+    StringBuilder         text = new StringBuilder();
+
+    boolean inResource = false, inZipList = false, inZipFile = false;
+    boolean inDefEntryPoint = false, inEntryPoint = false;
+
+    String     vdir = null, file = null, description = null;
+    String     defaultEntryPoint = null;
+    EntryPoint ep = null;
+
+    while(reader.hasNext()) {
+      switch(reader.next()) {
+        case XMLStreamConstants.START_ELEMENT: {
+          String name = reader.getLocalName();
+          text.setLength(0);
+
+          if("ResourceZip".equals(name)) {
+            inResource = true;
+          } else if("ZipList".equals(name)) {
+            inZipList = true;
+          } else if("ZipFile".equals(name) && inZipList) {
+            inZipFile = true;
+            vdir = file = description = defaultEntryPoint = null;
+            v_ep.clear();
+          } else if("DefEntryPoint".equals(name) && inZipFile) {
+            inDefEntryPoint = true;
+          } else if("EntryPoint".equals(name) && inZipFile) {
+            inEntryPoint = true;
+            ep = new EntryPoint();
           }
+          break;
         }
-      }
-
-      //System.out.println("xml:desc:"+zip.description+" - dep:"+zip.defaultEntryPoint);
 
-      snl = el.getElementsByTagName("EntryPoint");
-
-      if(snl != null && (n_entry_points = snl.getLength()) > 0) {
-        for(int j=0 ; j<n_entry_points ; j++) {
-          sel = (Element) snl.item(j);
-
-          if(sel.getElementsByTagName("RelURL").item(0).hasChildNodes()) {
-            EntryPoint ep = new EntryPoint();
-
-            ep.url         = getInnerText(sel,"RelURL");
-            ep.description = getInnerText(sel,"Description");
-
-            v_ep.add(ep);
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          text.append(reader.getText());
+          break;
+
+        case XMLStreamConstants.END_ELEMENT: {
+          String name  = reader.getLocalName();
+          String value = text.length() != 0 ? text.toString() : null;
+          text.setLength(0);
+
+          if(inResource) {
+            if("File".equals(name) && resourceFile == null)
+              resourceFile = value;
+            else if("ResourceZip".equals(name))
+              inResource = false;
+          } else if(inEntryPoint) {
+            if("RelURL".equals(name) && ep.url == null)
+              ep.url = value;
+            else if("Description".equals(name) && ep.description == null)
+              ep.description = value;
+            else if("EntryPoint".equals(name)) {
+              if(ep.url != null)
+                v_ep.add(ep);
+              inEntryPoint = false;
+            }
+          } else if(inDefEntryPoint) {
+            if("RelURL".equals(name) && value != null)
+              defaultEntryPoint = value;
+            else if("DefEntryPoint".equals(name))
+              inDefEntryPoint = false;
+          } else if(inZipFile) {
+            if("VDir".equals(name) && vdir == null)
+              vdir = value;
+            else if("File".equals(name) && file == null)
+              file = value;
+            else if("Description".equals(name) && description == null)
+              description = value;
+            else if("ZipFile".equals(name)) {
+              inZipFile = false;
+              add(previous,v_zips,vdir,file,description,defaultEntryPoint,
+                  v_ep.size() != 0 ? v_ep.toArray(new EntryPoint[v_ep.size()]) :
+                  null);
+            }
+          } else if("ZipList".equals(name)) {
+            inZipList = false;
           }
-        }
-
-        if(v_ep.size() != 0) {
-          zip.entryPoints = new EntryPoint[v_ep.size()];
-          v_ep.toArray(zip.entryPoints);
-          v_ep.clear();
+          break;
         }
       }
+    }
+  }
 
-      htZips.put(zip.virtualDir,zip);
-
-      v_zips.add(zip);
+  /**
+   * Add the record of a ZipFile element
+   */
+  private void add(ZipRepository previous,ArrayList<ZipRecord> v_zips,
+                   String vdir,String file,String description,
+                   String defaultEntryPoint,EntryPoint[] entryPoints) {
+
+    //System.out.println("xml:vdir:"+vdir+" - File:"+file);
+
+    if(vdir == null || file == null)
+      return;
+
+    ZipRecord zip = htZips.containsKey(vdir) ?
+      new ZipRecord() : record(previous,vdir,file);
+
+    if(previous != null && zip == previous.getZipRecord(vdir)) {
+      // Left alone until the whole file is read: it is still being
+      // served, and the load may fail
+      Update u = new Update();
+      u.zip               = zip;
+      u.description       = description;
+      u.defaultEntryPoint = defaultEntryPoint;
+      u.entryPoints       = entryPoints;
+      updates.add(u);
+    } else {
+      zip.virtualDir        = vdir;
+      zip.file              = file;
+      zip.description       = description;
+      zip.defaultEntryPoint = defaultEntryPoint;
+      zip.entryPoints       = entryPoints;
     }
 
-    //System.out.println(htZips);
+    htZips.put(vdir,zip);
 
-    v_zips.toArray(zips = new ZipRecord[v_zips.size()]);
+    v_zips.add(zip);
   }
 
   public void writeIniFile(PrintWriter out) {
@@ -177,17 +302,25 @@ public class ZipRepository {
     out.println("<ZipViewList>");
   }
 
+  /**
+   * Tells this repository apart from the others loaded, for the keys
+   * of cached pages
+   */
+  public String getStamp() {
+    return stamp;
+  }
+
   public ZipRecord getZipRecord(String vDir) {
     return (ZipRecord) htZips.get(vDir);
   }
 
+  /**
+   * A copy of the zip list.
+   * The list is only set by the constructor, so no lock is taken.
+   */
   public ZipRecord[] getZips() {
-    ZipRecord[] m_zips;
-
-    synchronized(this) {
-      m_zips = new ZipRecord[zips.length];
-      System.arraycopy(zips,0,m_zips,0,zips.length);
-    }
+    ZipRecord[] m_zips = new ZipRecord[zips.length];
+    System.arraycopy(zips,0,m_zips,0,zips.length);
 
     return m_zips;
   }
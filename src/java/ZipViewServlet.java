@@ -1,15 +1,32 @@
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.text.SimpleDateFormat;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -23,6 +40,9 @@ import org.xml.sax.SAXParseException;
 /**
  * Serves files inside zip archives transparently.
  * Uses a minimum set of classes for improving performance.
+ * The request path never blocks inside a monitor (no synchronized
+ * waits, no Object.wait), so the servlet may run on virtual threads
+ * without pinning their carriers.
  */
 public class ZipViewServlet extends HttpServlet {
   private static Logger logger =
@@ -94,26 +114,149 @@ public class ZipViewServlet extends HttpServlet {
    */
   public static final int RENDER_HEX    = 2;
  
+  /**
+   * Default page length of ?hex
+   */
+  static final long HEX_PAGE = 64 * 1024;
+
+  /**
+   * Default page length of ?text when paged
+   */
+  static final long TEXT_PAGE = 1024 * 1024;
+
+  /**
+   * Longest page of ?hex and ?text
+   */
+  static final long MAX_PAGE = 16 * 1024 * 1024;
+
   /**
    * Hex values
    */
   public static final char[] hex_values =
     {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
  
+  /**
+   * Entity tag suffix of each render mode
+   */
+  static final String[] render_variants = { null, "txt", "hex" };
+
   /**
    * HTML to shown for viewing chars < 32
    */
   String control_char = "<font color=\"red\">.</font>";
+
+  /**
+   * Renderer of the ?hex mode
+   */
+  HexRenderer hexRenderer = new HexRenderer(control_char);
  
   /**
    * New Zip file repository
    */
-  ZipRepository zipRepository;
- 
+  volatile ZipRepository zipRepository;
+
+  /**
+   * Time between sweeps of idle archive resources, in milliseconds
+   */
+  static final long SWEEP_PERIOD = 10 * 1000;
+
+  /**
+   * Default time an archive may stay unused before it is closed
+   */
+  static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000;
+
+  /**
+   * Default time an inflater may stay unused before it is released
+   */
+  static final long DEFAULT_INFLATER_IDLE_TIMEOUT = 60 * 1000;
+
+  /**
+   * Default longest wait for an archive handle when the budget of open
+   * archives is spent
+   */
+  static final long DEFAULT_OPEN_WAIT_TIMEOUT = 5 * 1000;
+
+  /**
+   * Unused time before an archive is closed, 0 to keep archives open
+   */
+  long idleTimeout;
+
+  /**
+   * Unused time before an inflater is released
+   */
+  long inflaterIdleTimeout;
+
+  /**
+   * Runs the ResourceSweeper every SWEEP_PERIOD
+   */
+  ScheduledExecutorService sweeper;
+
+  /**
+   * All archives were opened at init, or there was no warm-up
+   */
+  volatile boolean ready = false;
+
+  /**
+   * Reloads the init file and reopens zips when they change, or null
+   */
+  ArchiveWatcher watcher;
+
+  /**
+   * Held while the init file is being read, so reloads don't overlap
+   */
+  final ReentrantLock reloadLock = new ReentrantLock();
+
+  /**
+   * Buffers used for copying entries to the client
+   */
+  BufferPool buffers = new BufferPool();
+
+  /**
+   * Rendered zip list, sidebar and entire zip pages
+   */
+  PageCache pages = new PageCache();
+
+  /**
+   * Figures of the buffer pools
+   */
+  PoolStats[] bufferStats = buffers.getStats();
+
+  /**
+   * Default byte budget of the entry cache: none, as the cache holds
+   * memory off the heap
+   */
+  static final long DEFAULT_CACHE_SIZE = 0;
+
+  /**
+   * Default size of the largest cached entry
+   */
+  static final int DEFAULT_CACHE_ENTRY_SIZE = 1024 * 1024;
+
+  /**
+   * Decompressed contents of the most requested entries, or null if
+   * disabled
+   */
+  EntryCache entryCache;
+
+  /**
+   * Default size of the smallest entry sent with non-blocking I/O
+   */
+  static final long DEFAULT_ASYNC_MIN_SIZE = 256 * 1024;
+
+  /**
+   * Send large entries with non-blocking I/O, off the request thread
+   */
+  boolean asyncDelivery = false;
+
+  /**
+   * Smallest entry sent with non-blocking I/O
+   */
+  long asyncMinSize;
+
   /**
-   * Flusher thread
+   * Timeout of non-blocking transfers, in milliseconds; 0 for none
    */
-  Thread flusher = null;
+  long asyncTimeout;
 
   static {
     HashMap<String,String> hm = new HashMap<String,String>();
@@ -141,83 +284,283 @@ public class ZipViewServlet extends HttpServlet {
 
     logger.fine("Reading init from: " + initXmlFile);
 
+    for(int i=0;i<bufferStats.length;i++)
+      Metrics.register("Pool",bufferStats[i].getName(),bufferStats[i]);
+
+    InflateIndex.setDirectory(directoryParameter("inflateIndexDir"));
+    CentralIndex.setDirectory(directoryParameter("directoryIndexDir"));
+
+    asyncDelivery = "true".equals(getInitParameter("asyncDelivery"));
+    asyncMinSize  = longParameter("asyncMinSize",DEFAULT_ASYNC_MIN_SIZE);
+    asyncTimeout  = longParameter("asyncTimeout",0);
+
+    long cacheSize = longParameter("entryCacheSize",DEFAULT_CACHE_SIZE);
+    if(cacheSize > 0) {
+      entryCache = new EntryCache(cacheSize,
+                                  (int) longParameter("entryCacheMaxEntrySize",
+                                                      DEFAULT_CACHE_ENTRY_SIZE));
+      Metrics.register("Cache","entries",entryCache);
+    }
+
+    HandleBudget.GLOBAL.configure(
+      (int) longParameter("maxOpenArchives",0),
+      longParameter("openWaitTimeout",DEFAULT_OPEN_WAIT_TIMEOUT));
+    Metrics.register("Budget","archives",HandleBudget.GLOBAL);
+
+    idleTimeout = longParameter("idleTimeout",DEFAULT_IDLE_TIMEOUT);
+    inflaterIdleTimeout = longParameter("inflaterIdleTimeout",
+                                        DEFAULT_INFLATER_IDLE_TIMEOUT);
+
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r,"ZipViewServlet sweeper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new ResourceSweeper(),SWEEP_PERIOD,
+                                   SWEEP_PERIOD,TimeUnit.MILLISECONDS);
+
+    if(!"false".equals(getInitParameter("watchFiles"))) {
+      try {
+        watcher = new ArchiveWatcher(initXmlFile,new ArchiveWatcher.Listener() {
+          public void configChanged() {
+            readInitFile();
+          }
+
+          public void archiveChanged(ZipRecord record) {
+            // Open the new file now rather than on the next request
+            record.invalidate();
+            try {
+              ZipArchive a = record.openArchive();
+              if(a != null)
+                a.release();
+              else
+                record.setValid(false);
+            } catch(NoHandleException e) {
+              // Opened on the next request
+            }
+          }
+        });
+      } catch(IOException e) {
+        logger.warning("Can't watch files: " + e);
+      }
+    }
+
     zipRepository = null;
     if(initXmlFile != null) {
       readInitFile();
       logger.fine("Read init.");
     }
+
+    ZipRepository repository = zipRepository;
+    if("true".equals(getInitParameter("warmUp")) && repository != null)
+      warmUp(repository,(int) longParameter("warmUpThreads",
+                             Runtime.getRuntime().availableProcessors()));
+    else
+      ready = true;
+
+    if(watcher != null)
+      watcher.start();
   }
- 
+
   /**
-   * Read the initialization file
+   * Open every archive of a repository in parallel, on at most threads
+   * threads, and then set ready. Returns at once; until then ?ready
+   * answers 503.
    */
-  public void readInitFile() {
-    zipRepository = null;
-    if(flusher != null) {
-      // Avisa a thread para morrer
-      synchronized(this) {
-        notify();
+  void warmUp(final ZipRepository repository,int threads) {
+    final ForkJoinPool pool  = new ForkJoinPool(Math.max(1,threads));
+    final long         start = System.nanoTime();
+
+    pool.execute(new RecursiveAction() {
+      protected void compute() {
+        List<RecursiveAction> opens = new ArrayList<RecursiveAction>();
+
+        for(final ZipRecord zr : allRecords(repository)) {
+          opens.add(new RecursiveAction() {
+            protected void compute() {
+              try {
+                ZipArchive a = zr.openArchive();
+                zr.setValid(a != null);
+                if(a != null)
+                  a.release();
+              } catch(NoHandleException e) {
+                // More archives than the budget: the rest open on use
+              } catch(RuntimeException e) {
+                zr.setValid(false);
+                logger.warning("Can't open " + zr.file + ": " + e);
+              }
+            }
+          });
+        }
+        invokeAll(opens);
+
+        ready = true;
+        logger.info("Opened " + opens.size() + " archives in " +
+                    (System.nanoTime() - start) / 1000000 + "ms");
       }
+    });
+    pool.shutdown();
+  }
 
-      // Espera que a thread morra
-      synchronized(this) {
-        while(flusher != null) {
-          try {
-            wait();
-          } catch (InterruptedException e) {
-          }
-        }
+  /**
+   * Servlet end: stop the sweeper, the watcher and the index writers,
+   * close the archives and unregister what init registered
+   */
+  @Override
+  public void destroy() {
+    if(sweeper != null)
+      sweeper.shutdownNow();
+    if(watcher != null)
+      watcher.close();
+    InflateIndex.shutdown();
+    CentralIndex.shutdown();
+
+    ZipRepository repository = zipRepository;
+
+    if(repository != null) {
+      for(ZipRecord zr : allRecords(repository)) {
+        Metrics.unregister("Archive",zr.virtualDir);
+        zr.remove();
       }
     }
-   
+
+    for(int i=0;i<bufferStats.length;i++)
+      Metrics.unregister("Pool",bufferStats[i].getName());
+    if(entryCache != null)
+      Metrics.unregister("Cache","entries");
+    Metrics.unregister("Budget","archives");
+    pages.clear();
+    super.destroy();
+  }
+ 
+  /**
+   * Numeric init parameter, or a default if missing or invalid
+   */
+  long longParameter(String name,long def) {
+    String value = getInitParameter(name);
+
+    if(value == null)
+      return def;
+
     try {
-      zipRepository = new ZipRepository(initXmlFile);
-    } catch(SAXParseException se) {
-      System.out.println("SAXParseException-" +
-                         se.getLineNumber() + ":" +
-                         se.getColumnNumber() + "|" + se);
-    } catch(SAXException se) {
-      System.out.println("SAXException:" + se);
-    } catch(IOException e) {
-      System.out.println("IOException:" + e);
+      return Long.parseLong(value.trim());
+    } catch(NumberFormatException e) {
+      logger.warning("Invalid " + name + ": " + value);
+      return def;
     }
+  }
+
+  /**
+   * Directory init parameter, created if missing; null if not set or
+   * unusable
+   */
+  File directoryParameter(String name) {
+    String value = getInitParameter(name);
+
+    if(value == null || value.length() == 0)
+      return null;
+
+    File dir = new File(value);
+    if(dir.isDirectory() || dir.mkdirs())
+      return dir;
+
+    logger.warning("Can't use " + name + " " + value);
+    return null;
+  }
+
+  /**
+   * Read the initialization file.
+   * The new repository is built while the current one keeps serving,
+   * and replaces it at once. Records whose zip hasn't changed are kept
+   * with their open archive, and the others are closed once their
+   * readers finish; if the file can't be read, the current repository
+   * stays.
+   */
+  public void readInitFile() {
+    reloadLock.lock();
+    try {
+      ZipRepository previous = zipRepository;
+      ZipRepository repository;
+
+      try {
+        repository = new ZipRepository(initXmlFile,previous);
+      } catch(SAXParseException se) {
+        System.out.println("SAXParseException-" +
+                           se.getLineNumber() + ":" +
+                           se.getColumnNumber() + "|" + se);
+        return;
+      } catch(SAXException se) {
+        System.out.println("SAXException:" + se);
+        return;
+      } catch(IOException e) {
+        System.out.println("IOException:" + e);
+        return;
+      } catch(RuntimeException e) {
+        System.out.println("Invalid init file:" + e);
+        return;
+      }
 
-    flusher = new Thread(new ResourceFlusher());
-    flusher.setDaemon(true);
-    flusher.start();
+      List<ZipRecord> added   = allRecords(repository);
+      List<ZipRecord> removed = previous != null ?
+        allRecords(previous) : new ArrayList<ZipRecord>();
+      Set<ZipRecord>  kept    = new HashSet<ZipRecord>(added);
+
+      kept.retainAll(removed);
+      added.removeAll(kept);
+      removed.removeAll(kept);
+
+      for(ZipRecord zr : removed)
+        Metrics.unregister("Archive",zr.virtualDir);
+      for(ZipRecord zr : added)
+        Metrics.register("Archive",zr.virtualDir,zr.getStats());
+
+      zipRepository = repository;
+      pages.clear();
+      if(watcher != null)
+        watcher.watch(repository);
+
+      // Requests holding their archives finish before they are closed,
+      // and requests on the previous repository can't open them again
+      for(ZipRecord zr : removed)
+        zr.remove();
+
+      logger.info("Loaded " + initXmlFile + ": " + kept.size() + " kept, " +
+                  added.size() + " added, " + removed.size() + " removed");
+    } finally {
+      reloadLock.unlock();
+    }
   }
  
   /**
-   *
+   * Every record of a repository, the resource zip included
+   */
+  static List<ZipRecord> allRecords(ZipRepository repository) {
+    List<ZipRecord> records = new ArrayList<ZipRecord>();
+    ZipRecord resource = repository.getZipRecord(".resource");
+
+    if(resource != null)
+      records.add(resource);
+    records.addAll(Arrays.asList(repository.getZips()));
+
+    return records;
+  }
+
+  /**
+   * Releases what each archive has left unused.
+   * Runs often and only touches the resources idle past their
+   * timeout, so archives age out one by one instead of all at once.
    */
-  public class ResourceFlusher implements Runnable {
+  public class ResourceSweeper implements Runnable {
     public void run() {
-      while(true) {
-        synchronized(ZipViewServlet.this) {
-          try {        
-            ZipViewServlet.this.wait(900000);
-            //ZipViewServlet.this.wait(5000);
-          } catch (InterruptedException e) {
-          }
-        }
-       
-        if(zipRepository == null) {
-          //System.out.println("Dying...");
-          synchronized(ZipViewServlet.this) {
-            flusher = null;
-            ZipViewServlet.this.notify();
-          }
-          return;
-        }
-       
-        //System.out.println("Flushing...");
-        ZipRecord[] zips = zipRepository.getZips();
-        for(int i=0;i<zips.length;i++) {
-          zips[i].flushZips();
-          zips[i] = null;
-        }
-        zips = null;
-      }
+      ZipRepository repository = zipRepository;
+
+      if(repository == null)
+        return;
+
+      for(ZipRecord zr : allRecords(repository))
+        zr.sweep(idleTimeout,inflaterIdleTimeout);
     }
   }
  
@@ -284,19 +627,25 @@ public class ZipViewServlet extends HttpServlet {
   }
  
   /**
-   * Returns the MIME type of a served file
+   * Returns the MIME type of a served file, or null if unknown
    */
-  public void guessContentType(String filename,HttpServletResponse res) {
+  public static String getContentType(String filename) {
     int dp=filename.lastIndexOf('.');
 
     if(dp==-1)
-      return;
+      return null;
  
-    Object mime_type = hash_mime_types.get(filename.substring(dp+1).
-                                           toLowerCase());
+    return hash_mime_types.get(filename.substring(dp+1).toLowerCase());
+  }
+
+  /**
+   * Sets the MIME type of a served file
+   */
+  public void guessContentType(String filename,HttpServletResponse res) {
+    String mime_type = getContentType(filename);
  
     if(mime_type != null)
-      res.setContentType((String) mime_type);
+      res.setContentType(mime_type);
   }
  
   /**
@@ -306,17 +655,24 @@ public class ZipViewServlet extends HttpServlet {
   public void doGet(HttpServletRequest req, HttpServletResponse res)
     throws ServletException, IOException {
 
+    ZipRepository       repository = zipRepository;
     ZipRecord           zip_file=null;
     String              zip_alias;
     String              zipped_filename=null;
-    ZipFile             zip=null;
     ServletOutputStream out=null;
-    ZipEntry            zip_entry=null;
+    ArchiveEntry        zip_entry=null;
     InputStream         zipped_file=null;
     int                 _unused_t;
     String              query_string = req.getQueryString();
+    String              query_mode   = query_string;
     int                 render       = RENDER_NORMAL;
 
+    // Polled by load balancers: answered without a session
+    if("ready".equals(query_string)) {
+      sendReady(res);
+      return;
+    }
+
     HttpSession session = req.getSession(true);
 
     boolean browsing = session.getAttribute("browsemode")!=null;
@@ -324,26 +680,33 @@ public class ZipViewServlet extends HttpServlet {
 
     String path_info=req.getPathInfo();
 
-    if(query_string!=null && query_string.length()!=0) {
-      if("reload".equals(query_string)) {
+    // Options may follow the mode: ?mode&name=value...
+    if(query_string!=null && query_string.indexOf('&') != -1)
+      query_mode = query_string.substring(0,query_string.indexOf('&'));
+
+    if(query_mode!=null && query_mode.length()!=0) {
+      if("reload".equals(query_mode)) {
         readInitFile();
 
         res.sendRedirect(getFullServletPath(req).append('/').toString());
         return;
-      } else if("browse".equals(query_string)) {
+      } else if("browse".equals(query_mode)) {
         session.setAttribute("browsemode",new Boolean(true));
         res.sendRedirect(getFullServletPath(req).append('/').toString());
-      } else if("nobrowse".equals(query_string)) {
+      } else if("nobrowse".equals(query_mode)) {
         session.removeAttribute("browsemode");
         res.sendRedirect(getFullServletPath(req).append('/').toString());
-      } else if("text".equals(query_string)) {
+      } else if("text".equals(query_mode)) {
         render = RENDER_TEXT;
-      } else if("hex".equals(query_string)) {
+      } else if("hex".equals(query_mode)) {
         render = RENDER_HEX;
-      } else if("sidebar".equals(query_string)) {
+      } else if("sidebar".equals(query_mode)) {
         sidebar(req,res);
         return;
-      } else if("browseall".equals(query_string)) {
+      } else if("stats".equals(query_mode)) {
+        sendStats(req,res);
+        return;
+      } else if("browseall".equals(query_mode)) {
         zip_alias = getRequestedAlias(path_info);
 
         if(zip_alias == null) {
@@ -351,17 +714,31 @@ public class ZipViewServlet extends HttpServlet {
           return;
         }
 
-        zip_file=(ZipRecord) zipRepository.getZipRecord(zip_alias);
+        zip_file=(ZipRecord) repository.getZipRecord(zip_alias);
 
         if(zip_file==null) {
           showZips(zip_not_found_msg,req,res);
           return;
         }
 
-        zip=zip_file.getZipFile();
+        ZipArchive archive;
+        try {
+          archive = zip_file.openArchive();
+        } catch(NoHandleException e) {
+          sendBusy(res);
+          return;
+        }
+        if(archive == null) {
+          zip_file.setValid(false);
+          showZips(zip_not_found_msg,req,res);
+          return;
+        }
 
-        showEntireZip(zip,zip_file,req,res);
-        zip_file.release(zip);
+        try {
+          showEntireZip(archive,zip_file,req,res);
+        } finally {
+          archive.release();
+        }
         return;
       }
     }
@@ -385,91 +762,233 @@ public class ZipViewServlet extends HttpServlet {
       return;
     }
 
-    ZipRecord zfd = zipRepository.getZipRecord(getRequestedAlias(path_info));
-    zip = zfd.getZipFile();
-    if(zip == null) {
-      zfd.valid = false;
-      cantOpenZip(getRequestedAlias(path_info),req,res);
+    ZipRecord zfd = repository.getZipRecord(zip_alias);
+    if(zfd == null) {
+      showZips(zip_not_found_msg,req,res);
       return;
     }
-    zip_file = null;
-
-    //***************** From this point forward, in case of error
-    //***************** a zfd.release(zip) must be performed.
 
-    zipped_filename=path_info.substring(zip_alias.length()+1);
+    ZipArchive archive;
+    try {
+      archive = zfd.openArchive();
+    } catch(NoHandleException e) {
+      sendBusy(res);
+      return;
+    }
+    if(archive == null) {
+      zfd.setValid(false);
+      cantOpenZip(zip_alias,req,res);
+      return;
+    }
 
-    if(zipped_filename==null || zipped_filename.length()==0 ||
-     zipped_filename.equals("/")) {
+    // Released once the response is written, or handed to the
+    // streams of an async transfer, which retain it themselves
+    try {
+      zipped_filename=path_info.substring(zip_alias.length()+1);
 
-      if(browsing)
-        showDir(zip,"",req,res);
-      else 
-        redirectToStartPage(zfd.virtualDir,zfd.defaultEntryPoint,req,res);
+      if(zipped_filename==null || zipped_filename.length()==0 ||
+       zipped_filename.equals("/")) {
 
-      zfd.release(zip);
-      return;
-    }
+        if(browsing) {
+          if(!dirNotModified(archive,"",req,res))
+            showDir(archive.getDirectory(""),req,res);
+        } else 
+          redirectToStartPage(zfd.virtualDir,zfd.defaultEntryPoint,req,res);
 
-    if(zipped_filename.charAt(0)=='/')
-        zipped_filename=zipped_filename.substring(1);
+        return;
+      }
 
-    zip_entry=zip.getEntry(zipped_filename);
+      if(zipped_filename.charAt(0)=='/')
+          zipped_filename=zipped_filename.substring(1);
 
-    if(zip_entry==null) {
-      // First do some strange checks for strange files
-      zip_entry=zip.getEntry("/"+zipped_filename);
+      zip_entry=archive.getEntry(zipped_filename);
 
       if(zip_entry==null) {
-        // Then some stranger checks
-        zip_entry=zip.getEntry("./"+zipped_filename);
+        // First do some strange checks for strange files
+        zip_entry=archive.getEntry("/"+zipped_filename);
 
         if(zip_entry==null) {
-          // Then give up.
-          fileNotFound(req,res);
-          zfd.release(zip);
+          // Then some stranger checks
+          zip_entry=archive.getEntry("./"+zipped_filename);
+
+          if(zip_entry==null) {
+            // Then look for a directory implied by file paths
+            ArchiveDirectory dir = archive.getDirectory(zipped_filename);
+
+            if(dir != null) {
+              if(!dirNotModified(archive,dir.getPath(),req,res))
+                showDir(dir,req,res);
+              return;
+            }
+
+            // Then give up.
+            fileNotFound(req,res);
+            return;
+          }
+        }
+      }
+
+      if(zip_entry.isDirectory()) {
+        ArchiveDirectory dir = archive.getDirectory(zip_entry.getName());
+
+        if(!dirNotModified(archive,dir.getPath(),req,res))
+          showDir(dir,req,res);
+        return;
+      }
+
+      boolean         gzip    = false;
+      List<ByteRange> ranges  = null;
+
+      if(render == RENDER_NORMAL) {
+        ranges = ByteRange.parse(req.getHeader("Range"),zip_entry.getSize());
+        if(zip_entry.getSize() >= 0)
+          res.setHeader("Accept-Ranges","bytes");
+
+        if(ranges != null &&
+           !ifRangeMatches(req,entityTag(archive,zip_entry,null),
+                           zip_entry.getTime()))
+          ranges = null;
+
+        if(zip_entry.getMethod() == ZipEntry.DEFLATED &&
+           !zip_entry.isEncrypted()) {
+          res.setHeader("Vary","Accept-Encoding");
+          gzip = ranges == null && acceptsGzip(req);
+        }
+      }
+
+      // ?hex is always shown a page at a time, ?text when asked to
+      ByteRange page        = null;
+      long      page_length = 0;
+      String    variant     = gzip ? "gz" : render_variants[render];
+
+      if(render != RENDER_NORMAL && zip_entry.getSize() >= 0 &&
+         (render == RENDER_HEX ||
+          req.getParameter("offset") != null ||
+          req.getParameter("length") != null)) {
+        page_length = pageLength(req,render);
+        page = viewPage(req,render,page_length,zip_entry.getSize());
+        variant += "-" + page.start + "-" + page.length();
+        pageLinks(res,query_mode,page,page_length,zip_entry.getSize());
+      }
+
+      // Answer revalidations before opening anything
+      if(notModified(req,res,entityTag(archive,zip_entry,variant),
+                     zip_entry.getTime()))
+        return;
+
+      if(render == RENDER_NORMAL) {
+        if(ranges != null) {
+          try {
+            sendRanges(archive,zip_entry,ranges,zipped_filename,res);
+          } catch (ClientAbortException cae) {
+            logger.fine("Client aborted " + path_info + ": " + cae.getMessage());
+            return;
+          }
+
+          out.flush();
+          out.close();
+          return;
+        }
+
+        if(zip_entry.isStored() || gzip) {
+          guessContentType(zipped_filename,res);
+
+          long length = gzip ? zip_entry.getCompressedSize() + GZIP_HEADER_SIZE
+                             : zip_entry.getSize();
+          if(gzip)
+            res.setHeader("Content-Encoding","gzip");
+          setContentLength(res,length);
+
+          if(deliverAsync(req,length)) {
+            sendAsync(req,gzip ? gzipStream(archive,zip_entry)
+                               : archive.getInputStream(zip_entry),length);
+            return;
+          }
+
+          try {
+            if(gzip)
+              sendGzipFile(archive,zip_entry,out);
+            else
+              sendStoredFile(archive,zip_entry,out);
+          } catch (ClientAbortException cae) {
+            logger.fine("Client aborted " + path_info + ": " + cae.getMessage());
+            return;
+          }
+
+          out.flush();
+          out.close();
           return;
         }
       }
-    }
 
-    if(zip_entry.isDirectory()) {
-      showDir(zip,zipped_filename,req,res);
-      zfd.release(zip);
-      return;
-    }
+      if(render != RENDER_HEX && entryCache != null &&
+         zip_entry.getMethod() == ZipEntry.DEFLATED &&
+         entryCache.accepts(zip_entry.getSize())) {
+        ByteBuffer data = cachedContents(archive,zip_entry);
+
+        if(data != null) {
+          if(render == RENDER_TEXT)
+            res.setContentType("text/plain");
+          else
+            guessContentType(zipped_filename,res);
+          if(page != null) {
+            data.position((int) page.start);
+            data.limit((int) (page.end + 1));
+          }
+          setContentLength(res,data.remaining());
 
-    zipped_file=zip.getInputStream(zip_entry);
+          try {
+            new OutputStreamChannel(out,buffers).write(data);
+          } catch (ClientAbortException cae) {
+            logger.fine("Client aborted " + path_info + ": " + cae.getMessage());
+            return;
+          }
 
-    if(zipped_file==null) {
-      cantOpenZip(zip_alias,req,res);
-      zfd.release(zip);
-      return;
-    }
+          out.flush();
+          out.close();
+          return;
+        }
+      }
 
-    if(render == RENDER_TEXT)
-      res.setContentType("text/plain");
-    else if(render == RENDER_HEX)
-      res.setContentType("text/html");
-    else
-      guessContentType(zipped_filename,res);
+      zipped_file=archive.getInputStream(zip_entry,page != null ? page.start : 0);
 
-    try {
-      if(render == RENDER_HEX)
-        sendHexFile(zip_entry,zipped_file,out,req); // X-File ? :)
+      if(render == RENDER_TEXT)
+        res.setContentType("text/plain");
+      else if(render == RENDER_HEX)
+        res.setContentType("text/html");
       else
-        sendFile(zip_entry,zipped_file,out);
-    } catch (IOException ioe) {
-      zfd.release(zip);
-      throw ioe;
-    } catch (ServletException se) {
-      zfd.release(zip);
-      throw se;
-    }
+        guessContentType(zipped_filename,res);
 
-    zfd.release(zip);
-    out.flush();
-    out.close();
+      if(render != RENDER_HEX) {
+        long length = page != null ? page.length() : zip_entry.getSize();
+        setContentLength(res,length);
+
+        if(deliverAsync(req,length)) {
+          sendAsync(req,zipped_file,length);
+          return;
+        }
+      }
+
+      try {
+        if(render == RENDER_HEX)
+          sendHexFile(zip_entry,zipped_file,out,req,
+                      query_mode,page,page_length); // X-File ? :)
+        else if(page != null)
+          Transfer.copyLength(zipped_file,out,page.length(),buffers);
+        else
+          sendFile(zip_entry,zipped_file,out);
+      } catch (ClientAbortException cae) {
+        logger.fine("Client aborted " + path_info + ": " + cae.getMessage());
+        return;
+      } finally {
+        zipped_file.close();
+      }
+
+      out.flush();
+      out.close();
+    } finally {
+      archive.release();
+    }
   }
 
   static void appendServletURL(StringBuilder sb, HttpServletRequest req) {
@@ -504,128 +1023,174 @@ public class ZipViewServlet extends HttpServlet {
   }
 
   /**
-   * Shows the list of the served zip files
+   * Part of the key of the pages listing the repository.
+   * Changes on reload and when a zip becomes valid or invalid.
    */
+  static String repositoryStamp(ZipRepository repository) {
+    return repository.getStamp() + ZipRecord.getValidityChanges();
+  }
 
-  public void showZips(String msg,
-                       HttpServletRequest req,
-                       HttpServletResponse res)
-    throws ServletException, IOException {
+  /**
+   * Path of the servlet from the server root.
+   * Cached pages link with it rather than with a full URL: they are
+   * shared by every client, so they hold nothing taken from the
+   * request headers.
+   */
+  static String servletRoot(HttpServletRequest req) {
+    return req.getContextPath() + req.getServletPath();
+  }
 
-    ServletOutputStream out = res.getOutputStream();
+  /**
+   * Style sheet link of the cached pages
+   */
+  static String pageStyleSheet(String root) {
+    return "<LINK REL=STYLESHEET TYPE=\"text/css\" HREF=\"" + root +
+      "/.resource/styles/style.css\">";
+  }
 
-    res.setContentType("text/html");
+  /**
+   * Sends a rendered page, or 304 if the client copy is current
+   */
+  void sendPage(PageCache.Page page,
+                HttpServletRequest req,
+                HttpServletResponse res)
+    throws IOException {
 
-    boolean browsing = (req.getSession(true).getAttribute("browsemode") != null);
+    if(notModified(req,res,page.etag,-1))
+      return;
 
-    out.println("<html>");
-    out.println("<head>");
-    out.println("<TITLE>ZipView Servlet</TITLE>");
-    out.println(getStyleSheet(req));
-    out.println("</head>");
-    out.println("<body>");
-    out.println("<span class=\"title\">ZipView Servlet</span><br>");
+    res.setContentType("text/html; charset=UTF-8");
+    setContentLength(res,page.body.length);
+
+    ServletOutputStream out = res.getOutputStream();
+    out.write(page.body);
+    out.flush();
+  }
+
+  /**
+   * Shows the list of the served zip files
+   */
+
+  public void showZips(String msg,
+                       HttpServletRequest req,
+                       HttpServletResponse res)
+    throws ServletException, IOException {
+
+    boolean       browsing   = (req.getSession(true).getAttribute("browsemode") != null);
+    ZipRepository repository = zipRepository;
+    String        root       = servletRoot(req);
+    String        styleSheet = pageStyleSheet(root);
+    String        key        = "zips|" + msg + "|" + browsing + "|" +
+      req.getServletPath() + "|" + root + "|" + repositoryStamp(repository);
+
+    PageCache.Page page = pages.get(key);
+    if(page != null) {
+      sendPage(page,req,res);
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder(4096);
+
+    sb.append("<html>\n");
+    sb.append("<head>\n");
+    sb.append("<TITLE>ZipView Servlet</TITLE>\n");
+    sb.append(styleSheet).append('\n');
+    sb.append("</head>\n");
+    sb.append("<body>\n");
+    sb.append("<span class=\"title\">ZipView Servlet</span><br>\n");
     if(msg!=null)
-      out.println("<span class=\"subtitle\">"+msg+"</span>");
-    out.println("<hr>");
+      sb.append("<span class=\"subtitle\">").append(msg).append("</span>\n");
+    sb.append("<hr>\n");
 
-    out.println("<center>");
-    out.println("<table width=80%><tr><td>");
+    sb.append("<center>\n");
+    sb.append("<table width=80%><tr><td>\n");
 
-    out.println("<table border=0 cellspacing=0 cellpadding=1 width=100% class=\"outerbox\">");
-    out.println("<tr><td class=\"tableheader\">Available zips</td></tr>");
-    out.println("<tr><td><table border=0 cellspacing=0 cellpadding=3 width=100% class=\"innerbox\">");
+    sb.append("<table border=0 cellspacing=0 cellpadding=1 width=100% class=\"outerbox\">\n");
+    sb.append("<tr><td class=\"tableheader\">Available zips</td></tr>\n");
+    sb.append("<tr><td><table border=0 cellspacing=0 cellpadding=3 width=100% class=\"innerbox\">\n");
 
-    showZipsNew(out,req,res);
+    showZipsNew(sb,repository,req);
 
-    out.println("</table></td></tr>");
+    sb.append("</table></td></tr>\n");
 
-    out.println("</table><br>");
+    sb.append("</table><br>\n");
 
-    out.println("<table width=100%><tr>");
-    out.println("<td width=\"33%\" align=center class=\"specialcell\">");
+    sb.append("<table width=100%><tr>\n");
+    sb.append("<td width=\"33%\" align=center class=\"specialcell\">\n");
 
-    out.println("</td>");
-    out.println("<td width=\"33%\"></td>");
-    out.println("<td width=\"33%\" align=center class=\"specialcell\">");
+    sb.append("</td>\n");
+    sb.append("<td width=\"33%\"></td>\n");
+    sb.append("<td width=\"33%\" align=center class=\"specialcell\">\n");
     if(browsing) {
-      out.println("<a href=\"" + req.getServletPath() +
-                  "/?nobrowse\">Disable browse mode");
+      sb.append("<a href=\"").append(req.getServletPath())
+        .append("/?nobrowse\">Disable browse mode\n");
     } else {
-      out.println("<a href=\"" + req.getServletPath() +
-                  "/?browse\">Enable browse mode");
+      sb.append("<a href=\"").append(req.getServletPath())
+        .append("/?browse\">Enable browse mode\n");
     }
-    out.println("</a></td>");
+    sb.append("</a></td>\n");
 
-    out.println("</tr><tr>");
-    out.println("<td colspan=2></td>");
-    out.println("<td align=center class=\"specialcell\">");
-    out.println("<a href=\"javascript:sidebar.addPanel('Zip View','"+getFullServletPath(req)+"?sidebar','');\">Add to Sidebar</a>");
-    out.println("</td>");
+    sb.append("</tr><tr>\n");
+    sb.append("<td colspan=2></td>\n");
+    sb.append("<td align=center class=\"specialcell\">\n");
+    sb.append("<a href=\"javascript:sidebar.addPanel('Zip View',")
+      .append("location.protocol+'//'+location.host+'").append(root)
+      .append("?sidebar','');\">Add to Sidebar</a>\n");
+    sb.append("</td>\n");
 
-    out.println("</tr><tr>");
+    sb.append("</tr><tr>\n");
 
-    out.println("</tr></table>");
+    sb.append("</tr></table>\n");
 
-    out.println("</td></tr><tr><td>");
+    sb.append("</td></tr><tr><td>\n");
 
-    out.println("</td></tr></table>");
-    out.println("</center>");
+    sb.append("</td></tr></table>\n");
+    sb.append("</center>\n");
 
-    out.println("<hr>");
+    sb.append("<hr>\n");
 
-    out.println("<span class=\"notes\"><b>ZipView V. 2.0</b><ul>");
-    out.println("<li>Append \"?text\" to any zipped file URL to see it as plain text.</li>");
-    out.println("<li>Append \"?hex\" to any zipped file URL see an hex dump of it.</li></ul></span>");
+    sb.append("<span class=\"notes\"><b>ZipView V. 2.0</b><ul>\n");
+    sb.append("<li>Append \"?text\" to any zipped file URL to see it as plain text.</li>\n");
+    sb.append("<li>Append \"?hex\" to any zipped file URL see an hex dump of it.</li></ul></span>\n");
 
-    out.println("</body>");
-    out.println("</html>");
+    sb.append("</body>\n");
+    sb.append("</html>\n");
+
+    sendPage(pages.put(key,sb),req,res);
   }
  
   /**
    * Show zips - new style
    */
-  public void showZipsNew(ServletOutputStream out,
-                          HttpServletRequest req,
-                          HttpServletResponse res)
-    throws ServletException, IOException {
-
-    boolean browsing = (req.getSession(true).getAttribute("browsemode") != null);
-
-    ZipRecord[] m_zips = zipRepository.getZips();
-    
-    for(int i=0;i<m_zips.length;i++) {
-      ZipRecord za=m_zips[i];
-      if(za == null)
-        continue;
-
-      out.println("<tr>");
-      synchronized(za) {
-        out.println("<td class=\"data\">");
-        if(za.valid) {
-          out.print("<a href=\""+req.getServletPath()+"/"+za.virtualDir+"/\">");
-          out.print(za.virtualDir);
-          out.print("</a>");
-        } else {
-          out.println(za.virtualDir);
-        }
-        out.print("</td>");
-
-        out.println("<td class=\"desc\">");
-        out.print("<a href=\""+req.getServletPath()+"/"+za.virtualDir+"/\">");
-        out.print(za.description != null ? za.description : "<em>No description</em>");
-        out.print("</a>");
-        out.print("</td>");
-
-        if(za.valid)
-          out.println("<td class=\"data\"><span style=\"color:#00ff00\">OK</span></td>");
-        else
-          out.println("<td class=\"data\"><span style=\"color:#ff0000\">Invalid</span></td>");
+  public void showZipsNew(StringBuilder sb,
+                          ZipRepository repository,
+                          HttpServletRequest req) {
+
+    for(ZipRecord za : repository.getZips()) {
+      sb.append("<tr>\n");
+      sb.append("<td class=\"data\">\n");
+      if(za.valid) {
+        sb.append("<a href=\"").append(req.getServletPath()).append('/')
+          .append(za.virtualDir).append("/\">");
+        sb.append(za.virtualDir);
+        sb.append("</a>");
+      } else {
+        sb.append(za.virtualDir).append('\n');
       }
-      out.println("</tr>");
+      sb.append("</td>");
+
+      sb.append("<td class=\"desc\">\n");
+      sb.append("<a href=\"").append(req.getServletPath()).append('/')
+        .append(za.virtualDir).append("/\">");
+      sb.append(za.description != null ? za.description : "<em>No description</em>");
+      sb.append("</a>");
+      sb.append("</td>");
 
-      // Aid GC
-      m_zips[i] = null;
+      if(za.valid)
+        sb.append("<td class=\"data\"><span style=\"color:#00ff00\">OK</span></td>\n");
+      else
+        sb.append("<td class=\"data\"><span style=\"color:#ff0000\">Invalid</span></td>\n");
+      sb.append("</tr>\n");
     }
   }
  
@@ -636,46 +1201,122 @@ public class ZipViewServlet extends HttpServlet {
                       HttpServletResponse res)
     throws ServletException, IOException {
 
+    ZipRepository repository = zipRepository;
+    String        root       = servletRoot(req);
+    String        styleSheet = pageStyleSheet(root);
+    String        key        = "sidebar|" + root + "|" +
+      repositoryStamp(repository);
+
+    PageCache.Page page = pages.get(key);
+    if(page != null) {
+      sendPage(page,req,res);
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder(2048);
+
+    sb.append("<html>\n");
+    sb.append("<head>\n");
+    sb.append("<TITLE>ZipView Servlet</TITLE>\n");
+    sb.append(styleSheet).append('\n');
+    sb.append("</head>\n");
+    sb.append("<body style=\"margin: 0px;\">\n");
+    sb.append("<center>\n");
+    sb.append("<table width=100% class=\"desc\">\n");
+
+    for(ZipRecord za : repository.getZips()) {
+      sb.append("<tr>\n");
+      sb.append("<td class=\"desc\">\n");
+      sb.append("<a href=\"#\" onclick=\"window._content.location='")
+        .append(root).append('/').append(za.virtualDir).append("/'\">");
+      sb.append(za.description != null ? za.description : "<em>No description</em>");
+      sb.append("</a>");
+      sb.append("</td>");
+      sb.append("</tr>\n");
+    }
+
+    sb.append("</table>\n");
+    sb.append("</center>\n");
+    sb.append("</body>\n");
+    sb.append("</html>\n");
+
+    sendPage(pages.put(key,sb),req,res);
+  }
+ 
+  /**
+   * Answers ?ready: 200 once the archives were opened at init, 503
+   * before, or if there is no repository
+   */
+  public void sendReady(HttpServletResponse res) throws IOException {
+    boolean up = ready && zipRepository != null;
+    byte[]  bytes = (up ? "ready\n" : "starting\n").getBytes("UTF-8");
+
+    res.setStatus(up ? HttpServletResponse.SC_OK :
+                  HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    res.setContentType("text/plain");
+    res.setHeader("Cache-Control","no-cache");
+    setContentLength(res,bytes.length);
+
     ServletOutputStream out = res.getOutputStream();
+    out.write(bytes);
+    out.flush();
+  }
 
-    res.setContentType("text/html");
+  /**
+   * Answers 503 when an archive can't be opened because every handle
+   * of the budget is in use
+   */
+  public void sendBusy(HttpServletResponse res) throws IOException {
+    byte[] bytes = "Too many archives in use, retry later\n".getBytes("UTF-8");
 
-    out.println("<html>");
-    out.println("<head>");
-    out.println("<TITLE>ZipView Servlet</TITLE>");
-    out.println(getStyleSheet(req));
-    out.println("</head>");
-    out.println("<body style=\"margin: 0px;\">");
-    out.println("<center>");
-    out.println("<table width=100% class=\"desc\">");
+    res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    res.setContentType("text/plain");
+    res.setHeader("Cache-Control","no-cache");
+    res.setIntHeader("Retry-After",1);
+    setContentLength(res,bytes.length);
 
-    ZipRecord[] m_zips = zipRepository.getZips();
-    
-    for(int i=0;i<m_zips.length;i++) {
-      ZipRecord za=m_zips[i];
-      if(za == null)
-        continue;
-  
-      out.println("<tr>");
-      synchronized(za) {
-        out.println("<td class=\"desc\">");
-        out.print("<a href=\"#\" onclick=\"window._content.location='"+getFullServletPath(req)+"/"+za.virtualDir+"/'\">");
-        out.print(za.description != null ? za.description : "<em>No description</em>");
-        out.print("</a>");
-        out.print("</td>");
-      }
-      out.println("</tr>");
-  
-      // Aid GC
-      m_zips[i] = null;
+    ServletOutputStream out = res.getOutputStream();
+    out.write(bytes);
+    out.flush();
+  }
+
+  /**
+   * Shows the pool and archive figures, as JSON or, with
+   * ?stats&format=prometheus, in the Prometheus text format
+   */
+  public void sendStats(HttpServletRequest req,
+                        HttpServletResponse res)
+    throws ServletException, IOException {
+
+    List<Metrics.Source> sources = new ArrayList<Metrics.Source>();
+    sources.addAll(Arrays.asList(bufferStats));
+    sources.add(HandleBudget.GLOBAL);
+    if(entryCache != null)
+      sources.add(entryCache);
+
+    ZipRepository repository = zipRepository;
+    if(repository != null)
+      for(ZipRecord zr : allRecords(repository))
+        sources.add(zr.getStats());
+
+    String text;
+    if("prometheus".equals(req.getParameter("format"))) {
+      res.setContentType("text/plain; version=0.0.4");
+      text = Metrics.toPrometheus(sources);
+    } else {
+      res.setContentType("application/json");
+      text = Metrics.toJson(sources);
     }
 
-    out.println("</table>");
-    out.println("</center>");
-    out.println("</body>");
-    out.println("</html>");
+    byte[] bytes = text.getBytes("UTF-8");
+    res.setHeader("Cache-Control","no-cache");
+    setContentLength(res,bytes.length);
+
+    ServletOutputStream out = res.getOutputStream();
+    out.write(bytes);
+    out.flush();
   }
- 
+
   /**
    * Redirects a "zip alias" path to a "zip alias/start page" path.
    *
@@ -727,14 +1368,13 @@ public class ZipViewServlet extends HttpServlet {
   /**
    * Shows a directory listening.
    */
-  public void showDir(ZipFile zip,
-                      String dir,
+  public void showDir(ArchiveDirectory dir,
                       HttpServletRequest req,
                       HttpServletResponse res)
     throws ServletException, IOException {
 
     ServletOutputStream out = res.getOutputStream();
-    int l=dir.length();
+    SimpleDateFormat    df  = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
     res.setContentType("text/html");
 
@@ -745,63 +1385,85 @@ public class ZipViewServlet extends HttpServlet {
     out.println("</head>");
     out.println("<body>");
     out.println("<span class=\"title\">ZipView Servlet</span><br>");
-    out.println("<span class=\"subtitle\">Contents for directory <b>/"+dir+"</b>:</span>");
+    out.println("<span class=\"subtitle\">Contents for directory <b>/"+dir.getPath()+"</b>:</span>");
     out.println("<hr>");
     out.println("<div class=\"direntry\">");
     out.println("[&nbsp;<a href=\"../\">&nbsp;Up one level&nbsp;</a>&nbsp;]<br>");
+    out.println("<table class=\"direntry\">");
 
-    for(Enumeration<? extends ZipEntry> e=zip.entries();e.hasMoreElements();) {
-      String entry=e.nextElement().getName();
-      if(l==0 || entry.startsWith(dir)) {
-        int p=entry.indexOf('/',l);
+    for(ArchiveDirectory d : dir.getDirectories())
+      dirLine(out,df,d.getName()+"/",d.getSize(),d.getTime());
 
-        if(p==-1 || (entry.length()==p+1 && entry.indexOf('/',p+1)==-1)) {
-          entry=entry.substring(l);
+    for(ArchiveEntry e : dir.getFiles())
+      dirLine(out,df,ArchiveDirectory.fileName(e),e.getSize(),e.getTime());
 
-          if(entry.length()>0)
-            out.println("<a href=\""+entry+"\">"+entry+"</a><br>");
-        }
-      }
-    }
+    out.println("</table>");
     out.println("</div>");
     out.println("</body>");
     out.println("</html>");
   }
 
+  /**
+   * One line of a directory listing
+   */
+  private static void dirLine(ServletOutputStream out,
+                              SimpleDateFormat df,
+                              String name,
+                              long size,
+                              long time)
+    throws IOException {
+
+    out.println("<tr><td><a href=\""+name+"\">"+name+"</a></td>" +
+                "<td align=\"right\">"+(size >= 0 ? Long.toString(size) : "")+"</td>" +
+                "<td>"+(time > 0 ? df.format(new Date(time)) : "")+"</td></tr>");
+  }
+
   /**
    * Shows the entire zip contents
    */
-  public void showEntireZip(ZipFile zip,
+  public void showEntireZip(ZipArchive zip,
                             ZipRecord zipi,
                             HttpServletRequest req,
                             HttpServletResponse res)
     throws ServletException, IOException {
 
-    ServletOutputStream out = res.getOutputStream();
+    String root       = servletRoot(req);
+    String styleSheet = pageStyleSheet(root);
+    String key        = "all|" + req.getServletPath() + "|" + root + "|" +
+      zipi.virtualDir + "|" + zip.getIdentity();
 
-    res.setContentType("text/html");
+    PageCache.Page page = pages.get(key);
+    if(page != null) {
+      sendPage(page,req,res);
+      return;
+    }
 
-    out.println("<html>");
-    out.println("<head>");
-    out.println("<TITLE>ZipView Servlet</TITLE>");
-    out.println(getStyleSheet(req));
-    out.println("</head>");
-    out.println("<body>");
-    out.println("<span class=\"title\">ZipView Servlet</span><br>");
-    out.println("<span class=\"subtitle\">Entire zip contents:</span>");
-    out.println("<hr>");
-    out.println("<div class=\"direntry\">");
+    StringBuilder sb = new StringBuilder(64 * zip.size() + 1024);
+
+    sb.append("<html>\n");
+    sb.append("<head>\n");
+    sb.append("<TITLE>ZipView Servlet</TITLE>\n");
+    sb.append(styleSheet).append('\n');
+    sb.append("</head>\n");
+    sb.append("<body>\n");
+    sb.append("<span class=\"title\">ZipView Servlet</span><br>\n");
+    sb.append("<span class=\"subtitle\">Entire zip contents:</span>\n");
+    sb.append("<hr>\n");
+    sb.append("<div class=\"direntry\">\n");
 
-    for(Enumeration<? extends ZipEntry> e=zip.entries();e.hasMoreElements();) {
+    for(Enumeration<ArchiveEntry> e=zip.entries();e.hasMoreElements();) {
       String entry=e.nextElement().getName();
 
       if(entry.length()>0)
-        out.println("<a href=\"" + req.getServletPath() + "/" +
-                    zipi.virtualDir + "/" + entry + "\">" + entry + "</a><br>");
+        sb.append("<a href=\"").append(req.getServletPath()).append('/')
+          .append(zipi.virtualDir).append('/').append(entry).append("\">")
+          .append(entry).append("</a><br>\n");
     }
-    out.println("</div>");
-    out.println("</body>");
-    out.println("</html>");
+    sb.append("</div>\n");
+    sb.append("</body>\n");
+    sb.append("</html>\n");
+
+    sendPage(pages.put(key,sb),req,res);
   }
 
   /**
@@ -820,18 +1482,508 @@ public class ZipViewServlet extends HttpServlet {
   }
 
   /**
-   * Sends a file to the client
+   * Sets the Content-Length header, when the length is known.
+   * Lengths over 2GB don't fit setContentLength(int).
+   */
+  static void setContentLength(HttpServletResponse res,long length) {
+    if(length < 0)
+      return;
+
+    if(length <= Integer.MAX_VALUE)
+      res.setContentLength((int) length);
+    else
+      res.setHeader("Content-Length",Long.toString(length));
+  }
+
+  /**
+   * Numeric request parameter, or a default if missing or invalid
+   */
+  static long pageParameter(HttpServletRequest req,String name,long def) {
+    String value = req.getParameter(name);
+
+    if(value == null)
+      return def;
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch(NumberFormatException e) {
+      return def;
+    }
+  }
+
+  /**
+   * Page length asked for a ?hex or ?text view.
+   * Hex pages are whole rows.
+   */
+  static long pageLength(HttpServletRequest req,int render) {
+    long length = pageParameter(req,"length",
+                                render == RENDER_HEX ? HEX_PAGE : TEXT_PAGE);
+
+    length = Math.max(1,Math.min(length,MAX_PAGE));
+    if(render == RENDER_HEX)
+      length = (length + HexRenderer.ROW - 1) / HexRenderer.ROW * HexRenderer.ROW;
+
+    return length;
+  }
+
+  /**
+   * Bytes of an entry shown on a ?hex or ?text page.
+   * The range is empty when the offset is past the end of the entry.
+   */
+  static ByteRange viewPage(HttpServletRequest req,int render,
+                            long length,long size) {
+    long offset = Math.max(0,pageParameter(req,"offset",0));
+
+    if(render == RENDER_HEX)
+      offset -= offset % HexRenderer.ROW;
+    offset = Math.min(offset,size);
+
+    return new ByteRange(offset,Math.min(offset + length,size) - 1);
+  }
+
+  /**
+   * Query string of a page of a view
+   */
+  static String pageQuery(String mode,long offset,long length) {
+    return "?" + mode + "&offset=" + offset + "&length=" + length;
+  }
+
+  /**
+   * Sets the Link header to the previous and next pages, if any
+   */
+  static void pageLinks(HttpServletResponse res,String mode,
+                        ByteRange page,long length,long size) {
+    StringBuilder sb = new StringBuilder();
+
+    if(page.start > 0)
+      sb.append('<').append(pageQuery(mode,Math.max(0,page.start - length),length))
+        .append(">; rel=\"prev\"");
+    if(page.end + 1 < size) {
+      if(sb.length() != 0)
+        sb.append(", ");
+      sb.append('<').append(pageQuery(mode,page.end + 1,length))
+        .append(">; rel=\"next\"");
+    }
+
+    if(sb.length() != 0)
+      res.setHeader("Link",sb.toString());
+  }
+
+  /**
+   * HTML with the position of a page and links to its neighbours
+   */
+  static String pageNavigation(String mode,ByteRange page,
+                               long length,long size) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("<span class=\"subtitle\">Bytes ");
+    if(page.length() > 0)
+      sb.append(page.start).append('-').append(page.end);
+    else
+      sb.append("none");
+    sb.append(" of ").append(size).append("</span><br>");
+
+    if(page.start > 0)
+      sb.append("[&nbsp;<a href=\"")
+        .append(pageQuery(mode,Math.max(0,page.start - length),length)
+                .replace("&","&amp;"))
+        .append("\">&nbsp;Previous&nbsp;</a>&nbsp;]");
+    if(page.end + 1 < size)
+      sb.append("[&nbsp;<a href=\"")
+        .append(pageQuery(mode,page.end + 1,length).replace("&","&amp;"))
+        .append("\">&nbsp;Next&nbsp;</a>&nbsp;]");
+
+    return sb.append("<br>").toString();
+  }
+
+  /**
+   * Sends a file to the client.
+   * Reads until the end of the entry; the size recorded on the zip
+   * only selects the transfer buffer.
    */
   public void sendFile(ZipEntry zip_entry,
                        InputStream zipped_file,OutputStream out)
     throws ServletException, IOException {
 
-    long size;
+    Transfer.copy(zipped_file,out,zip_entry.getSize(),buffers);
+  }
 
-    size=zip_entry.getSize();
-    
-    for(long i=0;i<size;i++)
-      out.write(zipped_file.read());
+  /**
+   * Decompressed contents of an entry, from the entry cache.
+   * On a miss the entry is inflated and offered to the cache.
+   * Returns null if the entry doesn't hold the size recorded on the
+   * zip.
+   */
+  ByteBuffer cachedContents(ZipArchive archive,ArchiveEntry entry)
+    throws IOException {
+
+    EntryCache.Key key = new EntryCache.Key(archive.getIdentity(),
+                                            entry.getName(),
+                                            entry.getCrc());
+    ByteBuffer data = entryCache.get(key);
+    if(data != null)
+      return data;
+
+    byte[]      b  = new byte[(int) entry.getSize()];
+    InputStream in = archive.getInputStream(entry);
+    try {
+      int off = 0, n;
+      while(off < b.length && (n = in.read(b,off,b.length - off)) != -1)
+        off += n;
+      if(off < b.length || in.read() != -1)
+        return null;
+    } finally {
+      in.close();
+    }
+
+    data = ByteBuffer.wrap(b);
+    entryCache.put(key,data);
+    return data;
+  }
+
+  /**
+   * True if a body of length bytes is to be sent with non-blocking
+   * I/O
+   */
+  boolean deliverAsync(HttpServletRequest req,long length) {
+    return asyncDelivery && length >= asyncMinSize && req.isAsyncSupported();
+  }
+
+  /**
+   * Sends a body with non-blocking I/O and returns at once.
+   * The response headers must be set; the stream is closed when the
+   * transfer ends.
+   */
+  void sendAsync(HttpServletRequest req,InputStream body,long length)
+    throws IOException {
+
+    AsyncContext ctx = req.startAsync();
+    ctx.setTimeout(asyncTimeout);
+    AsyncPump.start(ctx,body,buffers,length);
+  }
+
+  /**
+   * Sends a STORED file to the client.
+   * The entry bytes go from the archive file to the response without
+   * going through an entry stream.
+   */
+  public void sendStoredFile(ZipArchive archive,
+                             ArchiveEntry entry,
+                             OutputStream out)
+    throws ServletException, IOException {
+
+    archive.transferTo(entry,0,entry.getSize(),
+                       new OutputStreamChannel(out,buffers));
+  }
+
+  /**
+   * Strong entity tag of an entry.
+   * Made from the archive identity and the central directory data of
+   * the entry; variant tells apart other representations of the
+   * same entry (gzip, hex dump, ...).
+   */
+  static String entityTag(ZipArchive archive,ZipEntry entry,String variant) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append('"').append(archive.getIdentity())
+      .append('-').append(Long.toHexString(entry.getCrc()))
+      .append('-').append(Long.toHexString(entry.getSize()))
+      .append('-').append(Long.toHexString(entry.getCompressedSize()))
+      .append('-').append(Long.toHexString(entry.getTime()));
+    if(variant != null)
+      sb.append('-').append(variant);
+
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Sets the validators of a directory listing, and answers 304 if the
+   * client copy is current.
+   * Listings only change with the archive, so they are validated with
+   * a weak tag on the archive identity and its modification time.
+   *
+   * @return true if a 304 was sent
+   */
+  boolean dirNotModified(ZipArchive archive,
+                         String dir,
+                         HttpServletRequest req,
+                         HttpServletResponse res) {
+    String etag = "W/\"" + archive.getIdentity() + "-d" +
+      Integer.toHexString(dir.hashCode()) + "\"";
+
+    return notModified(req,res,etag,archive.lastModified());
+  }
+
+  /**
+   * Sets the ETag and Last-Modified headers and evaluates
+   * If-None-Match / If-Modified-Since.
+   * If-Modified-Since is only used when there is no If-None-Match.
+   *
+   * @return true if the client copy is current and a 304 was sent
+   */
+  static boolean notModified(HttpServletRequest req,
+                             HttpServletResponse res,
+                             String etag,
+                             long last_modified) {
+    res.setHeader("ETag",etag);
+    if(last_modified > 0)
+      res.setDateHeader("Last-Modified",last_modified);
+
+    String inm = req.getHeader("If-None-Match");
+    boolean not_modified;
+
+    if(inm != null) {
+      not_modified = false;
+      String opaque = opaqueTag(etag);
+      for(String tag : inm.split(",")) {
+        tag = tag.trim();
+        if("*".equals(tag) || opaque.equals(opaqueTag(tag))) {
+          not_modified = true;
+          break;
+        }
+      }
+    } else {
+      long ims = -1;
+      try {
+        ims = req.getDateHeader("If-Modified-Since");
+      } catch(IllegalArgumentException e) {
+      }
+      not_modified = ims != -1 && last_modified > 0 &&
+        last_modified / 1000 <= ims / 1000;
+    }
+
+    if(not_modified)
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    return not_modified;
+  }
+
+  /**
+   * Entity tag without the weak indicator
+   */
+  private static String opaqueTag(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  /**
+   * Evaluates If-Range: a Range is only honoured if the validator on
+   * If-Range still matches the entity (strong comparison).
+   */
+  static boolean ifRangeMatches(HttpServletRequest req,
+                                String etag,
+                                long last_modified) {
+    String if_range = req.getHeader("If-Range");
+
+    if(if_range == null)
+      return true;
+
+    if_range = if_range.trim();
+    if(if_range.startsWith("\"") || if_range.startsWith("W/"))
+      return if_range.equals(etag);
+
+    try {
+      long date = req.getDateHeader("If-Range");
+      return last_modified > 0 && date / 1000 == last_modified / 1000;
+    } catch(IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Sends byte ranges of a file to the client, as a 206 response.
+   * STORED entries are read from the archive at the range offsets;
+   * other entries are inflated, skipping up to each range.
+   */
+  public void sendRanges(ZipArchive archive,
+                         ArchiveEntry zip_entry,
+                         List<ByteRange> ranges,
+                         String filename,
+                         HttpServletResponse res)
+    throws ServletException, IOException {
+
+    long size = zip_entry.getSize();
+
+    if(ranges.isEmpty()) {
+      res.setHeader("Content-Range","bytes */" + size);
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+
+    ServletOutputStream out = res.getOutputStream();
+    String type = getContentType(filename);
+    String boundary = null;
+    byte[][] part_headers = null;
+
+    res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+    if(ranges.size() == 1) {
+      ByteRange r = ranges.get(0);
+
+      if(type != null)
+        res.setContentType(type);
+      res.setHeader("Content-Range",r.contentRange(size));
+      setContentLength(res,r.length());
+    } else {
+      boundary = "ZIPVIEW" + Long.toHexString(System.nanoTime());
+      part_headers = new byte[ranges.size() + 1][];
+
+      long length = 0;
+      for(int i=0;i<ranges.size();i++) {
+        ByteRange r = ranges.get(i);
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("\r\n--").append(boundary).append("\r\n");
+        if(type != null)
+          sb.append("Content-Type: ").append(type).append("\r\n");
+        sb.append("Content-Range: ").append(r.contentRange(size)).append("\r\n\r\n");
+
+        part_headers[i] = sb.toString().getBytes("ISO-8859-1");
+        length += part_headers[i].length + r.length();
+      }
+      part_headers[ranges.size()] =
+        ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+      length += part_headers[ranges.size()].length;
+
+      res.setContentType("multipart/byteranges; boundary=" + boundary);
+      setContentLength(res,length);
+    }
+
+    InputStream in = null;
+    long        in_pos = 0;
+
+    // Held while writing to a slow client between the parts, when no
+    // transfer or stream is holding the archive
+    archive.retain();
+    try {
+      for(int i=0;i<ranges.size();i++) {
+        ByteRange r = ranges.get(i);
+
+        if(part_headers != null)
+          Transfer.write(out,part_headers[i]);
+
+        if(zip_entry.isStored()) {
+          archive.transferTo(zip_entry,r.start,r.length(),
+                             new OutputStreamChannel(out,buffers));
+        } else {
+          if(in == null || in_pos > r.start) {
+            if(in != null)
+              in.close();
+            in = archive.getInputStream(zip_entry,r.start);
+            in_pos = r.start;
+          }
+
+          Transfer.skipFully(in,r.start - in_pos);
+          Transfer.copyLength(in,out,r.length(),buffers);
+          in_pos = r.end + 1;
+        }
+      }
+
+      if(part_headers != null)
+        Transfer.write(out,part_headers[ranges.size()]);
+    } finally {
+      try {
+        if(in != null)
+          in.close();
+      } finally {
+        archive.release();
+      }
+    }
+  }
+
+  /**
+   * Checks if the client accepts a gzip content encoding
+   */
+  static boolean acceptsGzip(HttpServletRequest req) {
+    String accept = req.getHeader("Accept-Encoding");
+    boolean star = false;
+
+    if(accept == null)
+      return false;
+
+    for(String coding : accept.split(",")) {
+      String name = coding;
+      float  q = 1;
+      int    sc = coding.indexOf(';');
+
+      if(sc != -1) {
+        name = coding.substring(0,sc);
+        String param = coding.substring(sc + 1).trim();
+        if(param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2).trim());
+          } catch(NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      name = name.trim();
+
+      if("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name))
+        return q > 0;
+      if("*".equals(name))
+        star = q > 0;
+    }
+
+    return star;
+  }
+
+  /**
+   * Size of the gzip header plus trailer
+   */
+  static final int GZIP_HEADER_SIZE = 18;
+
+  /**
+   * Sends a DEFLATED file to the client as gzip.
+   * The deflated data is copied from the archive as is, between a gzip
+   * header and a trailer made from the central directory CRC and size.
+   */
+  public void sendGzipFile(ZipArchive archive,
+                           ArchiveEntry entry,
+                           OutputStream out)
+    throws ServletException, IOException {
+
+    Transfer.write(out,gzipHeader(entry));
+    archive.transferTo(entry,0,entry.getCompressedSize(),
+                       new OutputStreamChannel(out,buffers));
+    Transfer.write(out,gzipTrailer(entry));
+  }
+
+  /**
+   * The gzip form of a DEFLATED entry, as a stream
+   */
+  InputStream gzipStream(ZipArchive archive,ArchiveEntry entry)
+    throws IOException {
+
+    return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+      new ByteArrayInputStream(gzipHeader(entry)),
+      archive.getRawInputStream(entry),
+      new ByteArrayInputStream(gzipTrailer(entry)))));
+  }
+
+  /**
+   * gzip header of an entry, with its modification time
+   */
+  static byte[] gzipHeader(ArchiveEntry entry) {
+    long mtime = entry.getTime() > 0 ? entry.getTime() / 1000 : 0;
+
+    return new byte[] {
+      0x1f, (byte) 0x8b, 8, 0,
+      (byte) mtime, (byte) (mtime >> 8), (byte) (mtime >> 16), (byte) (mtime >> 24),
+      0, (byte) 0xff
+    };
+  }
+
+  /**
+   * gzip trailer of an entry, from its central directory CRC and size
+   */
+  static byte[] gzipTrailer(ArchiveEntry entry) {
+    long crc  = entry.getCrc();
+    long size = entry.getSize();
+
+    return new byte[] {
+      (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+      (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+    };
   }
 
   /**
@@ -840,13 +1992,12 @@ public class ZipViewServlet extends HttpServlet {
   public void sendHexFile(ZipEntry zip_entry,
                           InputStream zipped_file,
                           ServletOutputStream out,
-                          HttpServletRequest req)
+                          HttpServletRequest req,
+                          String mode,
+                          ByteRange page,
+                          long page_length)
     throws ServletException, IOException {
 
-    long  size,i;
-    int   j,b;
-    int[] buffer = new int[16];
-
     out.println("<html>");
     out.println("<head>");
     out.println("<TITLE>ZipView Servlet</TITLE>");
@@ -854,52 +2005,28 @@ public class ZipViewServlet extends HttpServlet {
     out.println("</head>");
     out.println("<body>");
 
-    out.println("<font face=\"monospace\" size=-1>");
+    long   size = zip_entry.getSize();
+    String nav  = null;
 
-    size=zip_entry.getSize();
-    
-    for(i=0;i<size;) {
-      buffer[(int) (i & 0xf)] = b = zipped_file.read();
-      out.print(hex_values[(b >> 4) & 0xf]);
-      out.print(hex_values[b & 0xf]);
-      out.print(' ');
-      i++;
-      if((i & 0xf) == 0) {
-        for(j=0;j<16;j++) {
-          if(buffer[j] < 32)
-            out.print(control_char);
-          else if(buffer[j] == 32)
-            out.print("&nbsp;");
-          else {
-            out.print("&#");
-            out.print(buffer[j]);
-            out.print(';');
-          }
-        }
-        out.println("<br>");
-      }
-    }
+    if(page != null && page.length() < size)
+      nav = pageNavigation(mode,page,page_length,size);
 
-    if((i & 0xf) != 0) {
-      for(j=(int) (i & 0xf);j<16;j++)
-        out.print("&nbsp;&nbsp;&nbsp;");
+    if(nav != null)
+      out.println(nav);
 
-      for(j=0;j<(int) (i & 0xf);j++) {
-        if(buffer[j]<32)
-          out.print(control_char);
-        else if(buffer[j] == 32)
-          out.print("&nbsp;");
-        else {
-          out.print("&#");
-          out.print(buffer[j]);
-          out.print(';');
-        }
-      }
-      out.println("<br>");
-    }
+    out.println("<font face=\"monospace\" size=-1>");
+
+    if(page != null)
+      hexRenderer.render(zipped_file,out,page.length(),buffers);
+    else
+      hexRenderer.render(zipped_file,out,size >= 0 ? size : Long.MAX_VALUE,
+                         buffers);
 
     out.println("</font>");
 
+    if(nav != null)
+      out.println(nav);
+
     out.println("</body>");
     out.println("</html>");
   }